@@ -4,23 +4,27 @@ import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 public class AdminCLI {
 
     private static final String USERS_FILE = "user_profiles.json";
+    private static final String USERS_LOG_FILE = "user_profiles.log";
     private static final String SONG_DATA_FILE = "song_data.json";
+    private static final String SONG_COUNTERS_FILE = "song_counters.bin";
     private static final String SONGS_FOLDER = "server_songs";
 
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
     private Map<String, Map<String, Object>> userProfiles = new LinkedHashMap<>();
 
-    private Map<String, Integer> songLikes = new HashMap<>();
-    private Map<String, Integer> songViews = new HashMap<>();
+    private SongCounterStore songCounters;
 
     private final Scanner scanner = new Scanner(System.in, StandardCharsets.UTF_8);
 
@@ -58,56 +62,56 @@ public class AdminCLI {
             System.out.println("error " + USERS_FILE + ": " + e.getMessage());
             userProfiles = new LinkedHashMap<>();
         }
+        UserProfileLog.replay(new File(USERS_LOG_FILE), userProfiles);
     }
 
     private void saveUserProfiles() {
         try (Writer w = new OutputStreamWriter(new FileOutputStream(USERS_FILE), StandardCharsets.UTF_8)) {
             gson.toJson(userProfiles, w);
-            System.out.println("\nuser profile saved " + USERS_FILE);
         } catch (Exception e) {
             System.out.println("error saving " + USERS_FILE + ": " + e.getMessage());
+            return;
         }
+        System.out.println("\nuser profile saved " + USERS_FILE);
+        dropUserProfileLog();
     }
 
-    private void loadSongData() {
-        File f = new File(SONG_DATA_FILE);
-        if (!f.exists()) {
-            System.out.println("warning :  " + SONG_DATA_FILE + " not found");
-            songLikes = new HashMap<>();
-            songViews = new HashMap<>();
-            return;
-        }
-        try (Reader r = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
-            Type t = new TypeToken<Map<String, Map<String, Double>>>() {
-            }.getType();
-            Map<String, Map<String, Double>> data = gson.fromJson(r, t);
-            songLikes = new HashMap<>();
-            songViews = new HashMap<>();
-            if (data != null) {
-                Map<String, Double> likes = data.getOrDefault("likes", Collections.emptyMap());
-                for (Map.Entry<String, Double> e : likes.entrySet()) songLikes.put(e.getKey(), e.getValue().intValue());
-                Map<String, Double> views = data.getOrDefault("views", Collections.emptyMap());
-                for (Map.Entry<String, Double> e : views.entrySet()) songViews.put(e.getKey(), e.getValue().intValue());
+    // The snapshot now contains everything the server had logged, so the log can go, but
+    // only if no server is running: a running server holds the lock and keeps appending.
+    private void dropUserProfileLog() {
+        try (FileChannel lockChannel = FileChannel.open(Paths.get(USERS_LOG_FILE + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock serverLock = lockChannel.tryLock();
+            if (serverLock == null) {
+                System.out.println("server is running: it keeps its own copy of the profiles and writes it back on its next compaction");
+                return;
             }
-        } catch (Exception e) {
-            System.out.println("error reading this" + SONG_DATA_FILE + ": " + e.getMessage());
-            songLikes = new HashMap<>();
-            songViews = new HashMap<>();
+            try {
+                Files.deleteIfExists(Paths.get(USERS_LOG_FILE));
+                Files.deleteIfExists(Paths.get(USERS_LOG_FILE + ".old"));
+            } finally {
+                serverLock.release();
+            }
+        } catch (IOException e) {
+            System.out.println("error removing " + USERS_LOG_FILE + ": " + e.getMessage());
         }
     }
 
-    private void saveSongData() {
-        try (Writer w = new OutputStreamWriter(new FileOutputStream(SONG_DATA_FILE), StandardCharsets.UTF_8)) {
-            Map<String, Object> out = new LinkedHashMap<>();
-            out.put("likes", songLikes);
-            out.put("views", songViews);
-            gson.toJson(out, w);
-            System.out.println("song details updated " + SONG_DATA_FILE);
+    private void loadSongData() {
+        // counters are read live from the server's mapped counter file, no reload needed
+        try {
+            songCounters = SongCounterStore.open(new File(SONG_COUNTERS_FILE), new File(SONG_DATA_FILE));
         } catch (Exception e) {
-            System.out.println("error saving" + SONG_DATA_FILE + ": " + e.getMessage());
+            System.out.println("error opening " + SONG_COUNTERS_FILE + ": " + e.getMessage());
         }
     }
 
+    private void saveSongData() {
+        if (songCounters == null) return;
+        songCounters.force();
+        System.out.println("song details updated " + SONG_COUNTERS_FILE);
+    }
+
     private void mainMenu() {
         while (true) {
             System.out.println("\n===== (AdminCLI) =====");
@@ -486,16 +490,16 @@ public class AdminCLI {
             String c = scanner.nextLine().trim();
             switch (c) {
                 case "1":
-                    showTop(songLikes, "Likes");
+                    showTop(SongCounterStore.Counter.LIKES, "Likes");
                     break;
                 case "2":
-                    showTop(songViews, "Views");
+                    showTop(SongCounterStore.Counter.VIEWS, "Views");
                     break;
                 case "3":
-                    setCounter(songLikes, "Likes");
+                    setCounter(SongCounterStore.Counter.LIKES, "Likes");
                     break;
                 case "4":
-                    setCounter(songViews, "Views");
+                    setCounter(SongCounterStore.Counter.VIEWS, "Views");
                     break;
                 case "5":
                     searchSongPresence();
@@ -508,14 +512,14 @@ public class AdminCLI {
         }
     }
 
-    private void showTop(Map<String, Integer> map, String label) {
+    private void showTop(SongCounterStore.Counter counter, String label) {
         int n = parseIntSafe(prompt("Number N: "), 10);
-        List<Map.Entry<String, Integer>> list = new ArrayList<>(map.entrySet());
-        list.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        List<Map.Entry<String, Long>> list = new ArrayList<>(songCounters.snapshot(counter).entrySet());
+        list.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
         System.out.printf("\nTop %d by %s:\n", n, label);
         System.out.println("-".repeat(40));
         int i = 1;
-        for (Map.Entry<String, Integer> e : list) {
+        for (Map.Entry<String, Long> e : list) {
             System.out.printf("%2d) %-25s | %s: %d %s\n", i++, e.getKey(), label, e.getValue(),
                     songExists(e.getKey()) ? "" : "(File not found)");
             if (i > n) break;
@@ -523,10 +527,10 @@ public class AdminCLI {
         if (list.isEmpty()) System.out.println("No data available.");
     }
 
-    private void setCounter(Map<String, Integer> map, String label) {
+    private void setCounter(SongCounterStore.Counter counter, String label) {
         String songId = prompt("songId: ");
         int val = parseIntSafe(prompt("New value for " + label + ": "), 0);
-        map.put(songId, val);
+        songCounters.set(songId, counter, val);
         saveSongData();
         System.out.println("Updated.");
     }
@@ -547,8 +551,8 @@ public class AdminCLI {
         System.out.println("\nSong file: " + (songExists(songId) ? "✅ Exists" : "❌ Not found"));
         System.out.println("Present in playlists: " + inPlaylists);
         if (!owners.isEmpty()) System.out.println("Owner/Playlist list: " + owners);
-        System.out.println("Likes: " + songLikes.getOrDefault(songId, 0) +
-                " | Views: " + songViews.getOrDefault(songId, 0));
+        System.out.println("Likes: " + songCounters.get(songId, SongCounterStore.Counter.LIKES) +
+                " | Views: " + songCounters.get(songId, SongCounterStore.Counter.VIEWS));
     }
 
     private void reportsMenu() {
@@ -601,13 +605,13 @@ public class AdminCLI {
         try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
             bw.write("rank,songId,likes,views,file_exists\n");
             // Sort by likes
-            List<Map.Entry<String, Integer>> list = new ArrayList<>(songLikes.entrySet());
-            list.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+            List<Map.Entry<String, Long>> list = new ArrayList<>(songCounters.snapshot(SongCounterStore.Counter.LIKES).entrySet());
+            list.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
             int i = 1;
-            for (Map.Entry<String, Integer> e : list) {
+            for (Map.Entry<String, Long> e : list) {
                 String id = e.getKey();
                 bw.write(i + "," + csv(id) + "," + e.getValue() + ","
-                        + songViews.getOrDefault(id, 0) + ","
+                        + songCounters.get(id, SongCounterStore.Counter.VIEWS) + ","
                         + (songExists(id) ? "yes" : "no") + "\n");
                 if (++i > n) break;
             }
@@ -0,0 +1,110 @@
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Length-prefixed binary framing for the TCP protocol. A client opts in per connection by
+// sending MAGIC as its first bytes (a JSON line can never start with a zero byte); after
+// that every message in both directions is one frame:
+//   [u32 length][body]
+// request body:   str16 action, str16 requestId (empty = none), u16 field count,
+//                 then per field: str16 name, str32 value
+// response body:  str16 requestId (empty = none), u16 count, then count x str32
+// strN is an N-bit big-endian byte count followed by that many UTF-8 bytes. Fields map
+// onto the same payload classes as the JSON protocol; a plain string payload (like_song,
+// increment_view, delete_account) is one field with an empty name. A value is a string
+// unless the top bit of its name's length (JSON_FIELD) is set, in which case it is JSON
+// text, for arrays, objects and numbers such as the requests of a batch; a JSON field
+// with an empty name is the whole payload. Each frame is read
+// into a buffer of exactly its size, so a large profileImage is never scanned for a
+// newline or grown into a giant line buffer.
+final class BinaryFrames {
+
+    static final byte[] MAGIC = {0, 'M', 'F', 1};
+    static final int JSON_FIELD = 0x8000;
+    static final int MAX_FRAME_BYTES = Integer.getInteger("tcp.maxFrameBytes", 16 * 1024 * 1024);
+
+    private BinaryFrames() {
+    }
+
+    // Reads the rest of MAGIC after its first byte has been consumed.
+    static boolean readMagicRest(InputStream in) throws IOException {
+        for (int i = 1; i < MAGIC.length; i++) {
+            if (in.read() != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    // Next frame body, or null when the client closed the connection between frames.
+    static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+
+    static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("frame of " + length + " bytes exceeds " + MAX_FRAME_BYTES);
+        }
+    }
+
+    static TcpActionRegistry.Call decodeRequest(ByteBuffer body, TcpActionRegistry actions) {
+        String action = readString(body, body.getShort() & 0xFFFF);
+        String requestId = readString(body, body.getShort() & 0xFFFF);
+        int fieldCount = body.getShort() & 0xFFFF;
+
+        JsonObject fields = new JsonObject();
+        JsonElement value = null;
+        for (int i = 0; i < fieldCount; i++) {
+            int nameLength = body.getShort() & 0xFFFF;
+            String name = readString(body, nameLength & ~JSON_FIELD);
+            String text = readString(body, body.getInt());
+            value = (nameLength & JSON_FIELD) != 0 ? JsonParser.parseString(text) : new JsonPrimitive(text);
+            if (!name.isEmpty()) fields.add(name, value);
+        }
+        boolean plain = fieldCount == 1 && fields.size() == 0;
+        return actions.call(action, requestId.isEmpty() ? null : requestId, plain ? value : fields);
+    }
+
+    // The whole frame, length prefix included, ready to write.
+    static ByteBuffer encodeResponse(String requestId, List<String> responses) {
+        byte[] id = requestId == null ? new byte[0] : requestId.getBytes(StandardCharsets.UTF_8);
+        byte[][] encoded = new byte[responses.size()][];
+        int length = 2 + id.length + 2;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = responses.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length);
+        frame.putShort((short) id.length).put(id);
+        frame.putShort((short) encoded.length);
+        for (byte[] response : encoded) {
+            frame.putInt(response.length).put(response);
+        }
+        return frame.flip();
+    }
+
+    private static String readString(ByteBuffer body, int length) {
+        if (length < 0 || length > body.remaining()) throw new IllegalArgumentException("truncated frame");
+        String s = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return s;
+    }
+}
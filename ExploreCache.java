@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// The get_explore_songs reply, encoded once as UTF-8 and shared by every client until the
+// catalog or a counter changes, together with the ExploreIndex that pages are cut from.
+// After a change the next request rebuilds both, but no more often than every
+// minRebuildMillis; requests in between (and requests arriving while another thread
+// rebuilds) get the previous snapshot. Every snapshot with different content gets the
+// next version number, which clients can send back to skip the body.
+class ExploreCache {
+
+    static final class Snapshot {
+        final long version;
+        final ExploreIndex index;
+        private final byte[] songs;
+        private final byte[] versioned;
+        private final byte[] notModified;
+
+        private Snapshot(long version, ExploreIndex index, byte[] songs) {
+            this.version = version;
+            this.index = index;
+            this.songs = songs;
+            byte[] prefix = ("{\"version\":" + version + ",\"songs\":").getBytes(StandardCharsets.UTF_8);
+            this.versioned = Arrays.copyOf(prefix, prefix.length + songs.length + 1);
+            System.arraycopy(songs, 0, versioned, prefix.length, songs.length);
+            versioned[versioned.length - 1] = '}';
+            this.notModified = ("{\"version\":" + version + ",\"notModified\":true}").getBytes(StandardCharsets.UTF_8);
+        }
+
+        // The bare JSON array older clients expect. Each caller gets its own read position.
+        ByteBuffer songs() {
+            return ByteBuffer.wrap(songs).asReadOnlyBuffer();
+        }
+
+        // {"version": n, "songs": [...]}
+        ByteBuffer versioned() {
+            return ByteBuffer.wrap(versioned).asReadOnlyBuffer();
+        }
+
+        // {"version": n, "notModified": true}
+        ByteBuffer notModified() {
+            return ByteBuffer.wrap(notModified).asReadOnlyBuffer();
+        }
+    }
+
+    private final Supplier<ExploreIndex> render;
+    private final long minRebuildMillis;
+    private final AtomicBoolean dirty = new AtomicBoolean(true);
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+    private volatile Snapshot current;
+    private volatile long lastBuilt;
+
+    ExploreCache(Supplier<ExploreIndex> render, long minRebuildMillis) {
+        this.render = render;
+        this.minRebuildMillis = minRebuildMillis;
+    }
+
+    void invalidate() {
+        dirty.set(true);
+    }
+
+    Snapshot get() {
+        Snapshot snapshot = current;
+        if (snapshot != null && (!dirty.get() || System.currentTimeMillis() - lastBuilt < minRebuildMillis)) {
+            return snapshot;
+        }
+        if (snapshot != null) {
+            if (!rebuildLock.tryLock()) return snapshot;
+        } else {
+            rebuildLock.lock();
+        }
+        try {
+            if (current == null || dirty.get()) rebuild();
+            return current;
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    private void rebuild() {
+        // cleared first so a change made while rendering marks the new snapshot dirty again
+        dirty.set(false);
+        ExploreIndex index;
+        byte[] songs;
+        try {
+            index = render.get();
+            songs = index.json().getBytes(StandardCharsets.UTF_8);
+        } catch (RuntimeException e) {
+            dirty.set(true);
+            throw e;
+        }
+        Snapshot previous = current;
+        if (previous == null || !Arrays.equals(previous.songs, songs)) {
+            current = new Snapshot(previous == null ? 1 : previous.version + 1, index, songs);
+        }
+        lastBuilt = System.currentTimeMillis();
+    }
+}
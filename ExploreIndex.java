@@ -0,0 +1,209 @@
+import com.google.gson.Gson;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// The explore listing pre-sorted by title, likes and views, each song already encoded as
+// its JSON object. Built together with an ExploreCache snapshot, so sorting happens at
+// most once per rebuild and a page costs a binary search plus page-size appends.
+// Cursors are keysets (sort key and id of the last song sent) rather than offsets, so a
+// client paging through the list while counters move neither skips nor repeats a song
+// that kept its position relative to the cursor.
+// The same orderings are also split into posting lists per genre and per artist (keys
+// compared case-insensitively), so a genre page is a map lookup plus the same binary
+// search, and the song count of every genre is known without a scan.
+class ExploreIndex {
+
+    enum Attribute {GENRE, ARTIST}
+
+    enum Sort {
+        TITLE(Comparator.comparing((Entry e) -> e.title, String.CASE_INSENSITIVE_ORDER).thenComparing(e -> e.id)),
+        LIKES(Comparator.comparingLong((Entry e) -> e.likes).reversed().thenComparing(e -> e.id)),
+        VIEWS(Comparator.comparingLong((Entry e) -> e.views).reversed().thenComparing(e -> e.id));
+
+        final Comparator<Entry> order;
+
+        Sort(Comparator<Entry> order) {
+            this.order = order;
+        }
+    }
+
+    static final class Entry {
+        final String id;
+        final String title;
+        final String genre;
+        final String artist;
+        final long likes;
+        final long views;
+        final String json;
+
+        Entry(String id, String title, String genre, String artist, long likes, long views, String json) {
+            this.id = id;
+            this.title = title;
+            this.genre = genre;
+            this.artist = artist;
+            this.likes = likes;
+            this.views = views;
+            this.json = json;
+        }
+
+        String get(Attribute attribute) {
+            return attribute == Attribute.GENRE ? genre : artist;
+        }
+    }
+
+    // the songs sharing one genre or artist, in every sort order
+    private static final class Group {
+        final String name;
+        final List<Entry[]> sorted = new ArrayList<>();
+
+        Group(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final Gson GSON = new Gson();
+
+    private final String json;
+    private final Entry[][] sorted = new Entry[Sort.values().length][];
+    private final List<Map<String, Group>> groups = new ArrayList<>();
+    private final String genres;
+
+    // entries in catalog order, which is also the order of the full (unpaged) listing
+    ExploreIndex(List<Entry> entries) {
+        StringBuilder all = new StringBuilder("[");
+        for (Entry entry : entries) {
+            if (all.length() > 1) all.append(',');
+            all.append(entry.json);
+        }
+        json = all.append(']').toString();
+
+        Entry[] array = entries.toArray(new Entry[0]);
+        for (Sort sort : Sort.values()) {
+            Entry[] copy = array.clone();
+            Arrays.sort(copy, sort.order);
+            sorted[sort.ordinal()] = copy;
+        }
+
+        for (Attribute attribute : Attribute.values()) {
+            Map<String, Group> byKey = new TreeMap<>();
+            for (Sort sort : Sort.values()) {
+                // filtering an already sorted array keeps each posting list in order
+                Map<String, List<Entry>> lists = new HashMap<>();
+                for (Entry entry : sorted[sort.ordinal()]) {
+                    String value = entry.get(attribute);
+                    if (value == null) continue;
+                    String key = key(value);
+                    byKey.putIfAbsent(key, new Group(value));
+                    lists.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+                }
+                for (Map.Entry<String, List<Entry>> list : lists.entrySet()) {
+                    byKey.get(list.getKey()).sorted.add(list.getValue().toArray(new Entry[0]));
+                }
+            }
+            groups.add(byKey);
+        }
+
+        StringBuilder names = new StringBuilder("[");
+        for (Group group : groups.get(Attribute.GENRE.ordinal()).values()) {
+            if (names.length() > 1) names.append(',');
+            names.append("{\"genre\":").append(quote(group.name))
+                    .append(",\"count\":").append(group.sorted.get(0).length).append('}');
+        }
+        genres = names.append(']').toString();
+    }
+
+    String json() {
+        return json;
+    }
+
+    // [{"genre": ..., "count": ...}] for every genre, by name.
+    String genres() {
+        return genres;
+    }
+
+    // {"version": ..., "sort": ..., "songs": [...], "nextCursor": ...}; nextCursor is null
+    // after the last page. Throws IllegalArgumentException for a cursor issued for
+    // another sort order.
+    String page(Sort sort, String cursor, int size, long version) {
+        return page(sorted[sort.ordinal()], sort, cursor, size, new StringBuilder("{\"version\":").append(version));
+    }
+
+    // Like page(), over the songs whose genre or artist equals value, with their "count".
+    // An unknown value is an empty listing.
+    String page(Attribute attribute, String value, Sort sort, String cursor, int size, long version) {
+        Group group = groups.get(attribute.ordinal()).get(key(value));
+        Entry[] entries = group == null ? new Entry[0] : group.sorted.get(sort.ordinal());
+        StringBuilder out = new StringBuilder("{\"version\":").append(version)
+                .append(",\"").append(attribute.name().toLowerCase()).append("\":").append(quote(group == null ? value : group.name))
+                .append(",\"count\":").append(entries.length);
+        return page(entries, sort, cursor, size, out);
+    }
+
+    private static String page(Entry[] entries, Sort sort, String cursor, int size, StringBuilder out) {
+        int start = 0;
+        if (cursor != null) {
+            int found = Arrays.binarySearch(entries, decodeCursor(sort, cursor), sort.order);
+            start = found >= 0 ? found + 1 : -found - 1;
+        }
+        int end = Math.min(entries.length, start + size);
+
+        out.append(",\"sort\":\"").append(sort.name().toLowerCase()).append("\",\"songs\":[");
+        for (int i = start; i < end; i++) {
+            if (i > start) out.append(',');
+            out.append(entries[i].json);
+        }
+        out.append("],\"nextCursor\":");
+        if (end < entries.length) {
+            out.append('"').append(encodeCursor(sort, entries[end - 1])).append('"');
+        } else {
+            out.append("null");
+        }
+        return out.append('}').toString();
+    }
+
+    private static String key(String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String quote(String value) {
+        return GSON.toJson(value);
+    }
+
+    private static String encodeCursor(Sort sort, Entry last) {
+        String key;
+        switch (sort) {
+            case LIKES:
+                key = Long.toString(last.likes);
+                break;
+            case VIEWS:
+                key = Long.toString(last.views);
+                break;
+            default:
+                key = last.title;
+        }
+        // the key is length-prefixed, since a title may itself contain newlines; the id is
+        // whatever follows it
+        String raw = sort.name() + '\n' + key.length() + '\n' + key + last.id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A probe entry that sorts exactly where the cursor's song sorted.
+    private static Entry decodeCursor(Sort sort, String cursor) {
+        String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        String[] header = raw.split("\n", 3);
+        if (header.length != 3 || !header[0].equals(sort.name())) throw new IllegalArgumentException("cursor is not for " + sort);
+        int keyLength = Integer.parseInt(header[1]);
+        if (keyLength < 0 || keyLength > header[2].length()) throw new IllegalArgumentException("malformed cursor");
+        String key = header[2].substring(0, keyLength);
+        String id = header[2].substring(keyLength);
+        switch (sort) {
+            case LIKES:
+                return new Entry(id, null, null, null, Long.parseLong(key), 0, null);
+            case VIEWS:
+                return new Entry(id, null, null, null, 0, Long.parseLong(key), null);
+            default:
+                return new Entry(id, key, null, null, 0, 0, null);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Admission control in front of the /songs handler. At most maxStreams downloads run at
+// once (503 beyond that) and one client address may hold at most maxPerClient of them
+// (429 beyond that), both with a Retry-After hint, so a spike or a few greedy clients
+// get a cheap rejection instead of a thread each.
+class HttpAdmission implements HttpHandler {
+
+    // set on the rejection threads, which answer every exchange they run with a 503
+    private static final ThreadLocal<Boolean> OVERFLOW = ThreadLocal.withInitial(() -> false);
+
+    private final HttpHandler delegate;
+    private final Semaphore streams;
+    private final int maxPerClient;
+    private final String retryAfterSeconds;
+    private final Map<String, Integer> perClient = new ConcurrentHashMap<>();
+
+    HttpAdmission(HttpHandler delegate, int maxStreams, int maxPerClient, int retryAfterSeconds) {
+        this.delegate = delegate;
+        this.streams = new Semaphore(maxStreams);
+        this.maxPerClient = maxPerClient;
+        this.retryAfterSeconds = String.valueOf(retryAfterSeconds);
+    }
+
+    // Bounded pool for the HttpServer. When even the queue is full the exchange goes to two
+    // rejection threads instead, flagged so that handle() answers 503 straight away whatever
+    // permits are free; parsing the request and writing the rejection never happens on the
+    // dispatcher thread. Should their queue fill up too, the dispatcher waits for room, so
+    // it stops accepting connections rather than buffering an unbounded backlog.
+    static ExecutorService newBoundedExecutor(int threads, int queueSize) {
+        AtomicInteger ids = new AtomicInteger();
+        AtomicInteger rejectIds = new AtomicInteger();
+        ExecutorService rejections = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(() -> {
+                    OVERFLOW.set(true);
+                    r.run();
+                }, "http-reject-" + rejectIds.incrementAndGet()),
+                (r, pool) -> {
+                    try {
+                        pool.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+        return new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, "http-" + ids.incrementAndGet()),
+                (r, pool) -> rejections.execute(r));
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (OVERFLOW.get()) {
+            reject(exchange, 503);
+            return;
+        }
+        String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+        int active = perClient.merge(client, 1, Integer::sum);
+        if (active > maxPerClient) {
+            release(client);
+            reject(exchange, 429);
+            return;
+        }
+        if (!streams.tryAcquire()) {
+            release(client);
+            reject(exchange, 503);
+            return;
+        }
+        try {
+            delegate.handle(exchange);
+        } finally {
+            streams.release();
+            release(client);
+        }
+    }
+
+    private void release(String client) {
+        perClient.computeIfPresent(client, (k, n) -> n == 1 ? null : n - 1);
+    }
+
+    private void reject(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().add("Retry-After", retryAfterSeconds);
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,166 @@
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Download throughput of the /songs handler against the byte[] copy loop it replaced,
+// reading from disk ("pooled") and from the off-heap SongFileCache ("cached").
+// A local HttpServer serves one song file to many concurrent raw-socket clients that
+// discard the body into a reused buffer, so nearly all allocation and CPU is on the
+// serving side. Reports throughput, process CPU and server-thread allocation per GB
+// served, and GC activity during the run. Every download is a new connection, the worst
+// case for allocation: what remains for the pooled handler is HttpServer's own
+// per-connection buffers, which grow with the chunk size.
+//
+// Usage: java HttpStreamBenchmark [concurrent downloads...]   (default: 16 64 256)
+// Options: -Dbench.fileMb=8 -Dbench.downloadsPerClient=8 -Dbench.serverThreads=64
+// Buffer size of the pooled handler: -Dhttp.bufferKb=32
+public class HttpStreamBenchmark {
+
+    private static final int FILE_MB = Integer.getInteger("bench.fileMb", 8);
+    private static final int DOWNLOADS_PER_CLIENT = Integer.getInteger("bench.downloadsPerClient", 8);
+    private static final int SERVER_THREADS = Integer.getInteger("bench.serverThreads", 64);
+
+    public static void main(String[] args) throws Exception {
+        int[] levels = args.length == 0 ? new int[]{16, 64, 256} : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        File folder = Files.createTempDirectory("stream-bench").toFile();
+        File song = new File(folder, "song.mp3");
+        byte[] data = new byte[FILE_MB * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        Files.write(song.toPath(), data);
+        song.deleteOnExit();
+        folder.deleteOnExit();
+
+        System.out.printf("%-7s %8s %10s %12s %14s %12s %6s %8s%n",
+                "handler", "clients", "MB/s", "cpu ms/GB", "alloc MB/GB", "p99 ms", "gcs", "gc ms");
+        for (int clients : levels) {
+            // warm both paths up first so neither pays for JIT compilation in its run
+            run("copy", copyLoop(folder), Math.min(clients, 8), false);
+            run("pooled", new SongFileHandler(folder, null, SERVER_THREADS, null), Math.min(clients, 8), false);
+            run("cached", new SongFileHandler(folder, null, SERVER_THREADS, cacheEverything()), Math.min(clients, 8), false);
+            run("copy", copyLoop(folder), clients, true);
+            run("pooled", new SongFileHandler(folder, null, SERVER_THREADS, null), clients, true);
+            run("cached", new SongFileHandler(folder, null, SERVER_THREADS, cacheEverything()), clients, true);
+        }
+    }
+
+    private static SongFileCache cacheEverything() {
+        return new SongFileCache(FILE_MB * 8L * 1024 * 1024, 0, name -> 1);
+    }
+
+    // the handler body as it was before: a fresh 8 KB array and a FileInputStream per download
+    private static HttpHandler copyLoop(File folder) {
+        return exchange -> {
+            File file = new File(folder, exchange.getRequestURI().getPath().replaceFirst("/songs/?", ""));
+            exchange.getResponseHeaders().add("Content-Type", "audio/mpeg");
+            exchange.sendResponseHeaders(200, file.length());
+            try (OutputStream os = exchange.getResponseBody();
+                 FileInputStream fis = new FileInputStream(file)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = fis.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                }
+            }
+        };
+    }
+
+    private static void run(String name, HttpHandler handler, int clients, boolean report) throws Exception {
+        List<Thread> serverThreads = new CopyOnWriteArrayList<>();
+        ExecutorService serverPool = Executors.newFixedThreadPool(SERVER_THREADS, r -> {
+            Thread t = new Thread(r, "bench-http");
+            serverThreads.add(t);
+            return t;
+        });
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.createContext("/songs", handler);
+        server.setExecutor(serverPool);
+        server.start();
+        int port = server.getAddress().getPort();
+        // start every pool thread now so their allocation counters cover the whole run
+        for (int i = 0; i < SERVER_THREADS; i++) serverPool.execute(() -> {
+        });
+
+        System.gc();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        Thread.sleep(100);
+        long allocBefore = allocated(threads, serverThreads);
+        long cpuBefore = os.getProcessCpuTime();
+        long[] gcBefore = gcTotals();
+        long start = System.nanoTime();
+
+        AtomicLong bytes = new AtomicLong();
+        LatencyHistogram latency = new LatencyHistogram();
+        ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+        List<Future<?>> done = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            done.add(clientPool.submit(() -> {
+                byte[] sink = new byte[64 * 1024];
+                for (int i = 0; i < DOWNLOADS_PER_CLIENT; i++) {
+                    long begin = System.nanoTime();
+                    bytes.addAndGet(download(port, sink));
+                    latency.record(System.nanoTime() - begin);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done) f.get();
+
+        long elapsed = System.nanoTime() - start;
+        long cpu = os.getProcessCpuTime() - cpuBefore;
+        long alloc = allocated(threads, serverThreads) - allocBefore;
+        long[] gcAfter = gcTotals();
+        clientPool.shutdown();
+        server.stop(0);
+        serverPool.shutdown();
+
+        if (!report) return;
+        double gb = bytes.get() / (1024.0 * 1024 * 1024);
+        System.out.printf("%-7s %8d %10.0f %12.0f %14.1f %12.1f %6d %8d%n", name, clients,
+                bytes.get() / (1024.0 * 1024) / (elapsed / 1e9), cpu / 1e6 / gb, alloc / (1024.0 * 1024) / gb,
+                latency.percentileMicros(0.99) / 1000.0, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    // One GET with Connection: close, reading the response to the end; returns bytes received.
+    private static long download(int port, byte[] sink) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.getOutputStream().write(("GET /songs/song.mp3 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            long total = 0;
+            int read;
+            while ((read = in.read(sink)) != -1) total += read;
+            return total;
+        }
+    }
+
+    private static long allocated(com.sun.management.ThreadMXBean threads, List<Thread> serverThreads) {
+        long total = 0;
+        for (Thread t : serverThreads) {
+            long bytes = threads.getThreadAllocatedBytes(t.getId());
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    private static long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, millis};
+    }
+}
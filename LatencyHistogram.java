@@ -0,0 +1,64 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free latency histogram with log-linear buckets: each power of two is split into 8
+// sub-buckets, so a reported percentile is within 12.5% of the true value. Recording is
+// one atomic increment; percentiles walk the ~500 buckets.
+class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(1, nanos / 1000)));
+    }
+
+    // Counts recorded since the last call, leaving this histogram empty.
+    LatencyHistogram drain() {
+        LatencyHistogram window = new LatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.getAndSet(i, 0);
+            if (n != 0) window.counts.set(i, n);
+        }
+        return window;
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        return total;
+    }
+
+    // Upper bound of the bucket holding the given quantile (0..1), in microseconds.
+    long percentileMicros(double quantile) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    String summary() {
+        return "n=" + count() + " p50=" + percentileMicros(0.5) + "us p99=" + percentileMicros(0.99)
+                + "us max=" + percentileMicros(1.0) + "us";
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int mantissa = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - 2) * SUB_BUCKETS + mantissa);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + 2;
+        long mantissa = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + mantissa + 1) << (exponent - 3)) - 1;
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.*;
+import java.util.function.Predicate;
+
+// Songs ordered by one counter, highest first (ties by id). Each song is kept once in a
+// sorted set next to its current value, so moving a song after its count changed is a
+// remove plus an insert, O(log n), and the top K is the first K entries of the set
+// instead of a sort of every counter.
+class Leaderboard {
+
+    private static final class Rank {
+        final String songId;
+        final long value;
+
+        Rank(String songId, long value) {
+            this.songId = songId;
+            this.value = value;
+        }
+    }
+
+    private static final Comparator<Rank> ORDER =
+            Comparator.comparingLong((Rank r) -> r.value).reversed().thenComparing(r -> r.songId);
+
+    private final TreeSet<Rank> ranks = new TreeSet<>(ORDER);
+    private final Map<String, Rank> bySong = new HashMap<>();
+
+    Leaderboard(Map<String, Long> values) {
+        values.forEach(this::update);
+    }
+
+    synchronized void update(String songId, long value) {
+        Rank old = bySong.get(songId);
+        if (old != null) {
+            if (old.value == value) return;
+            ranks.remove(old);
+        }
+        Rank rank = new Rank(songId, value);
+        ranks.add(rank);
+        bySong.put(songId, rank);
+    }
+
+    // The first limit songs accepted by include, as song id -> value in rank order.
+    synchronized LinkedHashMap<String, Long> top(int limit, Predicate<String> include) {
+        LinkedHashMap<String, Long> out = new LinkedHashMap<>();
+        for (Rank rank : ranks) {
+            if (out.size() >= limit) break;
+            if (include.test(rank.songId)) out.put(rank.songId, rank.value);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Approximate count of distinct listeners per song, as a memory-mapped HyperLogLog next to
+// the counter file. Each song owns one fixed slot of 2^PRECISION one-byte registers, so
+// a song costs the same ~1 KB whether it has ten listeners or ten million, with a
+// standard error of about 3%. Adding a listener updates at most one register; the
+// estimate is cached until a register changes.
+//
+// Layout: a 64 byte header (magic, version, precision, capacity, used slots) followed by
+// SLOT_SIZE byte slots of [u16 id length][id bytes][... padding][registers].
+class ListenerSketchStore implements AutoCloseable {
+
+    private static final int MAGIC = 0x4D424C53; // "MBLS"
+    private static final int VERSION = 1;
+    private static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final int ID_AREA = 256;
+    private static final int MAX_ID_BYTES = ID_AREA - 2;
+    private static final int SLOT_SIZE = ID_AREA + REGISTERS;
+    private static final int HEADER_SIZE = 64;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final int PRECISION_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int USED_OFFSET = 16;
+
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final File file;
+    private final FileChannel channel;
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    private final Map<String, Long> estimates = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
+    // register updates are read-compare-write; striped so different songs do not contend
+    private final Object[] stripes = new Object[64];
+
+    private MappedByteBuffer buffer;
+    private int capacity;
+
+    ListenerSketchStore(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+        if (channel.size() < HEADER_SIZE) {
+            map(INITIAL_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(PRECISION_OFFSET, PRECISION);
+            buffer.putInt(CAPACITY_OFFSET, INITIAL_CAPACITY);
+            buffer.putInt(USED_OFFSET, 0);
+        } else {
+            map((int) ((channel.size() - HEADER_SIZE) / SLOT_SIZE));
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(PRECISION_OFFSET) != PRECISION) {
+                throw new IOException(file + " is not a listener sketch file");
+            }
+        }
+        int used = buffer.getInt(USED_OFFSET);
+        for (int slot = 0; slot < used; slot++) {
+            int offset = slotOffset(slot);
+            byte[] id = new byte[buffer.getShort(offset)];
+            buffer.get(offset + 2, id);
+            slots.put(new String(id, StandardCharsets.UTF_8), slot);
+        }
+    }
+
+    void add(String songId, String listener) {
+        long hash = hash(listener);
+        int register = (int) (hash >>> (64 - PRECISION));
+        // position of the first set bit after the index bits; the guard bit caps it
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+        int slot = slotFor(songId);
+        mappingLock.readLock().lock();
+        try {
+            int offset = slotOffset(slot) + ID_AREA + register;
+            synchronized (stripes[slot % stripes.length]) {
+                if (buffer.get(offset) < rank) {
+                    buffer.put(offset, rank);
+                    estimates.remove(songId);
+                }
+            }
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    // Estimated number of distinct listeners of the song.
+    long estimate(String songId) {
+        Long cached = estimates.get(songId);
+        if (cached != null) return cached;
+        Integer slot = slots.get(songId);
+        if (slot == null) return 0;
+        mappingLock.readLock().lock();
+        try {
+            // under the stripe so a concurrent add cannot slip in between reading the
+            // registers and caching what they gave
+            synchronized (stripes[slot % stripes.length]) {
+                double sum = 0;
+                int zeros = 0;
+                int base = slotOffset(slot) + ID_AREA;
+                for (int i = 0; i < REGISTERS; i++) {
+                    int value = buffer.get(base + i);
+                    sum += 1.0 / (1L << value);
+                    if (value == 0) zeros++;
+                }
+                double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+                if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+                    // small cardinalities: linear counting over the empty registers is more accurate
+                    estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+                }
+                long rounded = Math.round(estimate);
+                estimates.put(songId, rounded);
+                return rounded;
+            }
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    void force() {
+        mappingLock.readLock().lock();
+        try {
+            buffer.force();
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes followed by the murmur3 finalizer, so every bit
+    // of the result depends on every input byte, as HyperLogLog assumes.
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int slotFor(String songId) {
+        Integer slot = slots.get(songId);
+        if (slot != null) return slot;
+        return allocate(songId);
+    }
+
+    private synchronized int allocate(String songId) {
+        Integer existing = slots.get(songId);
+        if (existing != null) return existing;
+        byte[] id = songId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("song id too long for sketch slot: " + songId);
+        }
+        mappingLock.writeLock().lock();
+        try {
+            int used = buffer.getInt(USED_OFFSET);
+            if (used == capacity) {
+                map(capacity * 2);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+            }
+            int offset = slotOffset(used);
+            buffer.putShort(offset, (short) id.length);
+            buffer.put(offset + 2, id);
+            buffer.putInt(USED_OFFSET, used + 1);
+            slots.put(songId, used);
+            return used;
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot grow " + file, e);
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    private void map(int newCapacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
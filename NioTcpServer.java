@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Non-blocking variant of the TCP server. An acceptor hands sockets to a few selector
+// threads (reactors) that only do I/O and framing; complete messages run on a shared
+// worker pool. A connection speaks newline-delimited JSON unless its first bytes are
+// BinaryFrames.MAGIC, in which case it sends length-prefixed frames instead. Messages of
+// one connection are still handled one at a time, exactly like the thread-per-connection
+// server; the handler decides whether a message is answered inline or later from another
+// thread (pipelined requests).
+class NioTcpServer {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_BYTES = Integer.getInteger("tcp.maxLineBytes", 16 * 1024 * 1024);
+    private static final int MAX_QUEUED_LINES = 256;
+
+    private final int port;
+    private final Reactor[] reactors;
+    private final ExecutorService workers;
+    private final int maxInFlight;
+    private final BiConsumer<String, Consumer<List<String>>> lineHandler;
+    private final BiConsumer<ByteBuffer, Consumer<ByteBuffer>> frameHandler;
+
+    NioTcpServer(int port, int reactorCount, int workerCount, int maxInFlight,
+                 BiConsumer<String, Consumer<List<String>>> lineHandler,
+                 BiConsumer<ByteBuffer, Consumer<ByteBuffer>> frameHandler) throws IOException {
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.lineHandler = lineHandler;
+        this.frameHandler = frameHandler;
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor();
+        }
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> new Thread(r, "tcp-worker-" + workerIds.incrementAndGet()));
+    }
+
+    void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        for (int i = 0; i < reactors.length; i++) {
+            new Thread(reactors[i], "tcp-reactor-" + i).start();
+        }
+        new Thread(() -> {
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel channel = server.accept();
+                    channel.configureBlocking(false);
+                    System.out.println("TCP client connected: " + channel.getRemoteAddress());
+                    reactors[next++ % reactors.length].register(channel);
+                } catch (IOException e) {
+                    System.out.println("TCP accept error: " + e.getMessage());
+                }
+            }
+        }, "tcp-acceptor").start();
+        System.out.println("TCP Socket server (NIO, " + reactors.length + " reactors) started on port " + port);
+    }
+
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, this));
+                } catch (IOException e) {
+                    System.out.println("TCP register error: " + e.getMessage());
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        if (conn == null || !key.isValid()) continue;
+                        try {
+                            if (key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                        } catch (IOException e) {
+                            System.out.println("TCP client connection error: " + e.getMessage());
+                            conn.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    System.out.println("TCP reactor error: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static final int UNKNOWN = 0;
+    private static final int LINES = 1;
+    private static final int FRAMES = 2;
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Reactor reactor;
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private int scanned;
+        private int protocol = UNKNOWN;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        // messages read whose reply has not been written to the socket yet; covers pipelined
+        // requests still running elsewhere and replies waiting in outbound, so neither can
+        // grow past maxInFlight while the client keeps sending
+        private final AtomicInteger pending = new AtomicInteger();
+        private boolean inputClosed;
+
+        // guarded by this: messages waiting for a worker and whether one is running
+        private final Queue<Runnable> inbox = new ArrayDeque<>();
+        private boolean processing;
+
+        Connection(SocketChannel channel, SelectionKey key, Reactor reactor) {
+            this.channel = channel;
+            this.key = key;
+            this.reactor = reactor;
+        }
+
+        // Reactor thread only.
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                // the client is done sending; finish answering what it already sent
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+            if (protocol == UNKNOWN && !detectProtocol()) return;
+            if (protocol == FRAMES) {
+                readFrames();
+            } else {
+                readLines();
+            }
+        }
+
+        private boolean detectProtocol() throws IOException {
+            if (readBuffer.position() == 0) return false;
+            if (readBuffer.get(0) != BinaryFrames.MAGIC[0]) {
+                protocol = LINES;
+                return true;
+            }
+            if (readBuffer.position() < BinaryFrames.MAGIC.length) return false;
+            for (int i = 1; i < BinaryFrames.MAGIC.length; i++) {
+                if (readBuffer.get(i) != BinaryFrames.MAGIC[i]) throw new IOException("unknown protocol prefix");
+            }
+            protocol = FRAMES;
+            readBuffer.flip().position(BinaryFrames.MAGIC.length);
+            readBuffer.compact();
+            return true;
+        }
+
+        private void readFrames() throws IOException {
+            int start = 0;
+            while (readBuffer.position() - start >= 4) {
+                int length = readBuffer.getInt(start);
+                BinaryFrames.checkLength(length);
+                if (readBuffer.position() - start - 4 < length) break;
+                byte[] body = new byte[length];
+                readBuffer.get(start + 4, body);
+                enqueue(() -> frameHandler.accept(ByteBuffer.wrap(body), this::send));
+                start += 4 + length;
+            }
+            readBuffer.flip().position(start);
+            readBuffer.compact();
+
+            // the length is known up front, so grow once to fit the frame being read
+            if (readBuffer.position() >= 4) {
+                int needed = 4 + readBuffer.getInt(0);
+                if (needed > readBuffer.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(needed);
+                    readBuffer.flip();
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                }
+            }
+        }
+
+        private void readLines() throws IOException {
+            int start = 0;
+            for (int i = scanned; i < readBuffer.position(); i++) {
+                if (readBuffer.get(i) != '\n') continue;
+                int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                byte[] line = new byte[end - start];
+                readBuffer.get(start, line);
+                String text = new String(line, StandardCharsets.UTF_8);
+                enqueue(() -> lineHandler.accept(text, this::reply));
+                start = i + 1;
+            }
+            readBuffer.flip().position(start);
+            readBuffer.compact();
+            scanned = readBuffer.position();
+
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_LINE_BYTES) {
+                    System.out.println("TCP line exceeds " + MAX_LINE_BYTES + " bytes, closing " + channel.getRemoteAddress());
+                    close();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_LINE_BYTES));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+
+        // Reactor thread only.
+        void onWritable() throws IOException {
+            ByteBuffer buf;
+            while ((buf = outbound.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) return;
+                outbound.poll();
+                pending.decrementAndGet();
+            }
+            int ops = key.interestOps() & ~SelectionKey.OP_WRITE;
+            if (canRead()) ops |= SelectionKey.OP_READ;
+            key.interestOps(ops);
+            closeIfDone();
+        }
+
+        private boolean canRead() {
+            synchronized (this) {
+                return !inputClosed && inbox.size() < MAX_QUEUED_LINES && pending.get() < maxInFlight;
+            }
+        }
+
+        private void closeIfDone() {
+            if (inputClosed && pending.get() == 0 && outbound.isEmpty()) close();
+        }
+
+        private void enqueue(Runnable message) {
+            pending.incrementAndGet();
+            boolean start;
+            synchronized (this) {
+                inbox.add(message);
+                start = !processing;
+                processing = true;
+                if (inbox.size() >= MAX_QUEUED_LINES || pending.get() >= maxInFlight) {
+                    // stop reading until the worker and the client catch up; onWritable resumes
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            if (start) workers.execute(this::processInbox);
+        }
+
+        // Worker thread: drains this connection's messages one by one.
+        private void processInbox() {
+            while (true) {
+                Runnable message;
+                synchronized (this) {
+                    message = inbox.poll();
+                    if (message == null) {
+                        processing = false;
+                        return;
+                    }
+                }
+                message.run();
+            }
+        }
+
+        // Any thread, exactly once per line.
+        private void reply(List<String> responses) {
+            StringBuilder out = new StringBuilder();
+            for (String response : responses) {
+                out.append(response).append('\n');
+            }
+            send(ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // Any thread, exactly once per message.
+        private void send(ByteBuffer data) {
+            outbound.add(data);
+            reactor.execute(() -> {
+                if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            });
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.File;
+import java.util.*;
+
+// Builds a SearchIndex over a synthetic library and measures query latency with the same
+// histogram the server reports. Titles, artists and albums draw from a generated
+// vocabulary with a skewed (Zipf-like) word frequency; queries mix full words with 1-4
+// letter prefixes, the typing-as-you-go case that walks the most tokens.
+//
+// Usage: java SearchBenchmark [songs...]   (default: 10000 100000)
+// Options: -Dbench.queries=20000 -Dbench.limit=20
+public class SearchBenchmark {
+
+    private static final int QUERIES = Integer.getInteger("bench.queries", 20000);
+    private static final int LIMIT = Integer.getInteger("bench.limit", 20);
+
+    private static final int VOCABULARY = Integer.getInteger("bench.vocabulary", 20000);
+    private static final String[] SYLLABLES = {
+            "ka", "lo", "mi", "ne", "ra", "su", "ti", "vo", "ze", "an", "el", "or", "us", "ly", "ba", "de",
+            "fi", "go", "hu", "jo", "ki", "ma", "no", "pe", "qu", "ri", "sa", "to", "ve", "wi", "xa", "yo"
+    };
+    private static final String[] WORDS = new String[VOCABULARY];
+
+    static {
+        Random random = new Random(7);
+        for (int i = 0; i < VOCABULARY; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int s = 2 + random.nextInt(3); s > 0; s--) word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            WORDS[i] = word.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = args.length == 0 ? new int[]{10000, 100000} : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        System.out.printf("%8s %10s %8s %10s %10s %10s %10s%n", "songs", "build ms", "heap MB", "queries", "p50 us", "p99 us", "max us");
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        Random random = new Random(42);
+        List<SongCatalog.Song> songs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            SongMetadata metadata = new SongMetadata();
+            metadata.title = phrase(random, 1 + random.nextInt(3)) + " " + i;
+            metadata.artist = phrase(random, 2);
+            metadata.album = phrase(random, 1 + random.nextInt(2));
+            songs.add(new SongCatalog.Song(new File("song_" + i + ".mp3"), metadata));
+        }
+
+        System.gc();
+        long heapBefore = usedHeap();
+        SearchIndex index = new SearchIndex();
+        long start = System.nanoTime();
+        index.sync(songs);
+        long buildMs = (System.nanoTime() - start) / 1_000_000;
+        System.gc();
+        long heapMb = (usedHeap() - heapBefore) / (1024 * 1024);
+
+        // warm up, then measure a fresh window
+        for (int i = 0; i < QUERIES / 4; i++) index.search(query(random), LIMIT);
+        index.latency().drain();
+        for (int i = 0; i < QUERIES; i++) index.search(query(random), LIMIT);
+        LatencyHistogram window = index.latency().drain();
+
+        System.out.printf("%8d %10d %8d %10d %10d %10d %10d%n", size, buildMs, heapMb, window.count(),
+                window.percentileMicros(0.5), window.percentileMicros(0.99), window.percentileMicros(1.0));
+    }
+
+    private static String query(Random random) {
+        String word = word(random);
+        if (random.nextBoolean()) return word;
+        String prefix = word.substring(0, Math.min(word.length(), 1 + random.nextInt(4)));
+        return random.nextBoolean() ? prefix : word(random) + " " + prefix;
+    }
+
+    // low indexes are much more likely, as in real titles
+    private static String word(Random random) {
+        double r = random.nextDouble();
+        return WORDS[(int) (r * r * WORDS.length)];
+    }
+
+    private static String phrase(Random random, int words) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) out.append(' ');
+            out.append(word(random));
+        }
+        return out.toString();
+    }
+
+    private static long usedHeap() {
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+}
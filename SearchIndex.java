@@ -0,0 +1,192 @@
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Inverted index over song title, artist and album. Every token maps to the songs that
+// contain it together with a field weight; tokens are kept sorted, so a query word also
+// matches as a prefix by walking the tokens that start with it. A song matches a query
+// when every query word matches one of its tokens, and scores the sum of its best match
+// per word (an exact token match counts double). Results are the top K by score.
+// Only the rarest query word is expanded through the index; the other words are checked
+// against each candidate's own handful of tokens. Queries whose rarest word still has
+// more than CACHE_ABOVE postings (first keystrokes, very common words) keep their top
+// hits in a bounded cache until the next sync(). sync() reindexes only songs whose
+// catalog entry changed.
+class SearchIndex {
+
+    static final class Hit {
+        final SongCatalog.Song song;
+        final int score;
+
+        Hit(SongCatalog.Song song, int score) {
+            this.song = song;
+            this.score = score;
+        }
+    }
+
+    private static final int TITLE_WEIGHT = 3;
+    private static final int ARTIST_WEIGHT = 2;
+    private static final int ALBUM_WEIGHT = 1;
+    private static final int CACHE_ABOVE = 1000;
+    private static final int CACHED_HITS = 100;
+    private static final int MAX_CACHED_QUERIES = 10000;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // token -> song id -> summed weight of the fields containing the token
+    private final TreeMap<String, Map<String, Integer>> postings = new TreeMap<>();
+    private final Map<String, SongCatalog.Song> indexed = new HashMap<>();
+    // song id -> token -> weight, the same entries as postings seen from the song side
+    private final Map<String, Map<String, Integer>> tokensBySong = new HashMap<>();
+    private final Map<String, List<Hit>> broadQueryHits = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    LatencyHistogram latency() {
+        return latency;
+    }
+
+    // Brings the index in line with the catalog snapshot.
+    void sync(List<SongCatalog.Song> songs) {
+        lock.writeLock().lock();
+        try {
+            broadQueryHits.clear();
+            Set<String> present = new HashSet<>();
+            for (SongCatalog.Song song : songs) {
+                present.add(song.id);
+                if (indexed.get(song.id) != song) {
+                    removeSong(song.id);
+                    addSong(song);
+                }
+            }
+            for (String id : new ArrayList<>(indexed.keySet())) {
+                if (!present.contains(id)) removeSong(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    List<Hit> search(String query, int limit) {
+        long start = System.nanoTime();
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        List<Hit> hits = new ArrayList<>();
+        if (words.isEmpty() || limit <= 0) return hits;
+
+        lock.readLock().lock();
+        try {
+            // a cached broad query is answered before any posting list is looked at
+            String key = null;
+            if (limit <= CACHED_HITS) {
+                words.sort(null);
+                key = String.join(" ", words);
+                List<Hit> cached = broadQueryHits.get(key);
+                if (cached != null) return new ArrayList<>(cached.subList(0, Math.min(limit, cached.size())));
+            }
+
+            String rarest = null;
+            long fewest = Long.MAX_VALUE;
+            for (String word : words) {
+                long postingsCount = 0;
+                for (Map<String, Integer> songs : tokensStartingWith(word).values()) postingsCount += songs.size();
+                if (postingsCount == 0) return hits;
+                if (postingsCount < fewest) {
+                    fewest = postingsCount;
+                    rarest = word;
+                }
+            }
+            if (fewest <= CACHE_ABOVE || key == null) return topHits(words, rarest, limit);
+
+            if (broadQueryHits.size() >= MAX_CACHED_QUERIES) broadQueryHits.clear();
+            List<Hit> top = topHits(words, rarest, CACHED_HITS);
+            broadQueryHits.put(key, top);
+            return new ArrayList<>(top.subList(0, Math.min(limit, top.size())));
+        } finally {
+            lock.readLock().unlock();
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    private List<Hit> topHits(List<String> words, String rarest, int limit) {
+        PriorityQueue<Hit> top = new PriorityQueue<>(Comparator.comparingInt((Hit h) -> h.score)
+                .thenComparing(h -> h.song.title, Comparator.reverseOrder()));
+        candidates:
+        for (Map.Entry<String, Integer> candidate : match(rarest).entrySet()) {
+            int score = candidate.getValue();
+            Map<String, Integer> tokens = tokensBySong.get(candidate.getKey());
+            for (String word : words) {
+                if (word.equals(rarest)) continue;
+                int best = 0;
+                for (Map.Entry<String, Integer> token : tokens.entrySet()) {
+                    if (token.getKey().startsWith(word)) {
+                        best = Math.max(best, token.getValue() * (token.getKey().equals(word) ? 2 : 1));
+                    }
+                }
+                if (best == 0) continue candidates;
+                score += best;
+            }
+            top.add(new Hit(indexed.get(candidate.getKey()), score));
+            if (top.size() > limit) top.poll();
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(Comparator.comparingInt((Hit h) -> -h.score).thenComparing(h -> h.song.title));
+        return hits;
+    }
+
+    private SortedMap<String, Map<String, Integer>> tokensStartingWith(String word) {
+        return postings.subMap(word, true, word + Character.MAX_VALUE, false);
+    }
+
+    // Best score per song over all tokens equal to or starting with word.
+    private Map<String, Integer> match(String word) {
+        Map<String, Integer> best = new HashMap<>();
+        for (Map.Entry<String, Map<String, Integer>> token : tokensStartingWith(word).entrySet()) {
+            int factor = token.getKey().equals(word) ? 2 : 1;
+            for (Map.Entry<String, Integer> posting : token.getValue().entrySet()) {
+                best.merge(posting.getKey(), posting.getValue() * factor, Math::max);
+            }
+        }
+        return best;
+    }
+
+    private void addSong(SongCatalog.Song song) {
+        Map<String, Integer> weights = new HashMap<>();
+        addField(weights, song.title, TITLE_WEIGHT);
+        addField(weights, song.artist, ARTIST_WEIGHT);
+        addField(weights, song.album, ALBUM_WEIGHT);
+        for (Map.Entry<String, Integer> e : weights.entrySet()) {
+            postings.computeIfAbsent(e.getKey(), k -> new HashMap<>()).put(song.id, e.getValue());
+        }
+        indexed.put(song.id, song);
+        tokensBySong.put(song.id, weights);
+    }
+
+    private static void addField(Map<String, Integer> weights, String text, int weight) {
+        for (String token : new HashSet<>(tokenize(text))) {
+            weights.merge(token, weight, Integer::sum);
+        }
+    }
+
+    private void removeSong(String id) {
+        Map<String, Integer> tokens = tokensBySong.remove(id);
+        indexed.remove(id);
+        if (tokens == null) return;
+        for (String token : tokens.keySet()) {
+            Map<String, Integer> songs = postings.get(token);
+            songs.remove(id);
+            if (songs.isEmpty()) postings.remove(token);
+        }
+    }
+
+    // Lower-cased words with accents stripped, so "Beyoncé" is found by "beyonce".
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}", "")
+                .toLowerCase(Locale.ROOT);
+        for (String token : folded.split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) tokens.add(token);
+        }
+        return tokens;
+    }
+}
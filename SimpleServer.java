@@ -1,8 +1,13 @@
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import org.java_websocket.WebSocket;
+import org.java_websocket.framing.TextFrame;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
@@ -10,8 +15,16 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class SimpleServer {
 
@@ -21,123 +34,189 @@ public class SimpleServer {
     private static final int WEBSOCKET_PORT = 12345;
     private static final String SONGS_FOLDER = "server_songs";
     private static final String USERS_FILE = "user_profiles.json";
-
-    private static Map<String, Integer> songLikes = new HashMap<>();
-    private static Map<String, Integer> songViews = new HashMap<>();
-    private static Map<String, Map<String, Object>> userProfiles = new HashMap<>();
+    private static final String USERS_LOG_FILE = "user_profiles.log";
+    private static final String SONG_DATA_FILE = "song_data.json";
+    private static final String SONG_COUNTERS_FILE = "song_counters.bin";
+    private static final String SONG_METADATA_FILE = "song_metadata.json";
+    private static final String SONG_TRENDING_FILE = "song_trending.bin";
+    private static final String SONG_LISTENERS_FILE = "song_listeners.bin";
+    private static final long VIEW_DEDUP_MS = Long.getLong("views.dedupSeconds", 60) * 1000;
+    private static final int VIEW_DEDUP_BITS = Integer.getInteger("views.dedupBits", 1 << 22);
+    private static final long SONG_FLUSH_INTERVAL_MS = Long.getLong("songs.flushMillis", 2000);
+    private static final int SONG_FLUSH_MAX_DIRTY = Integer.getInteger("songs.flushMaxDirty", 500);
+    private static final long EXPLORE_REBUILD_MS = Long.getLong("explore.rebuildMillis", 1000);
+    private static final int EXPLORE_DEFAULT_PAGE = 50;
+    private static final int EXPLORE_MAX_PAGE = Integer.getInteger("explore.maxPageSize", 500);
+    private static final int SEARCH_DEFAULT_RESULTS = 20;
+    private static final int SEARCH_MAX_RESULTS = Integer.getInteger("search.maxResults", 100);
+    private static final int TOP_DEFAULT_RESULTS = 10;
+    private static final int TOP_MAX_RESULTS = Integer.getInteger("top.maxResults", 100);
+    // how often search latency and cache stats are logged
+    private static final long STATS_SECONDS = Long.getLong("stats.seconds", 60);
+    // "thread" (one thread per connection), "virtual" (one virtual thread per connection)
+    // or "nio" (selector reactors plus a worker pool)
+    private static final String TCP_MODE = System.getProperty("tcp.mode", "thread");
+    private static final int TCP_REACTORS = Integer.getInteger("tcp.reactors", 2);
+    private static final int TCP_WORKERS = Integer.getInteger("tcp.workers", Runtime.getRuntime().availableProcessors() * 4);
+    // pipelined requests one connection may have unanswered (or, in nio mode, not yet
+    // written back) before reading from it stalls
+    private static final int TCP_MAX_IN_FLIGHT = Integer.getInteger("tcp.maxInFlight", 1024);
+    // "bounded" (fixed platform pool with a bounded queue) or "virtual"
+    private static final String HTTP_EXECUTOR = System.getProperty("http.executor", "bounded");
+    private static final int HTTP_MAX_STREAMS = Integer.getInteger("http.maxStreams", 64);
+    private static final int HTTP_MAX_PER_CLIENT = Integer.getInteger("http.maxPerClient", 4);
+    private static final int HTTP_QUEUE = Integer.getInteger("http.queue", 128);
+    private static final int HTTP_RETRY_AFTER_SECONDS = Integer.getInteger("http.retryAfterSeconds", 2);
+    // off-heap song file cache; 0 turns it off
+    private static final long HTTP_CACHE_BYTES = Long.getLong("http.cacheMb", 256) * 1024 * 1024;
+    private static final long HTTP_CACHE_MIN_VIEWS = Long.getLong("http.cacheMinViews", 5);
+
+    private static final UserProfileStore userProfiles = new UserProfileStore();
+    private static final ReentrantLock signupLock = new ReentrantLock();
+    private static final ExecutorService tcpPipeline = "virtual".equals(TCP_MODE)
+            ? VirtualThreads.newPerTaskExecutor("TCP pipeline") : Executors.newFixedThreadPool(TCP_WORKERS);
 
     private static Gson gson = new Gson();
+    private static final TcpActionRegistry tcpActions = new TcpActionRegistry(gson);
+    private static UserProfileLog userProfileLog;
+    // profile fields changed by the batch running on this thread, per user
+    private static final ThreadLocal<Map<String, Set<String>>> batchedChanges = new ThreadLocal<>();
+    private static SongCounters songCounters;
+    private static ListenerSketchStore songListeners;
+    private static final RecentListeners recentListeners = new RecentListeners(VIEW_DEDUP_MS, VIEW_DEDUP_BITS);
+    private static final SongMetadataStore songMetadata = new SongMetadataStore(new File(SONG_METADATA_FILE));
+    private static final SongCatalog songCatalog = new SongCatalog(new File(SONGS_FOLDER), songMetadata);
+    private static final SearchIndex searchIndex = new SearchIndex();
+    private static final SongFileCache songFileCache = HTTP_CACHE_BYTES <= 0 ? null : new SongFileCache(HTTP_CACHE_BYTES,
+            HTTP_CACHE_MIN_VIEWS, fileName -> songCounters.get(fileName.replace(".mp3", ""), SongCounterStore.Counter.VIEWS));
+    private static final ExploreCache exploreCache = new ExploreCache(SimpleServer::renderExploreSongs, EXPLORE_REBUILD_MS);
+    private static final TrendingEngine trending = new TrendingEngine(new File(SONG_TRENDING_FILE));
+    private static final WriteBehindFlusher trendingFlusher = new WriteBehindFlusher("trending", trending::save,
+            Long.getLong("trending.flushMillis", 60000), Integer.MAX_VALUE);
+    private static final WriteBehindFlusher songDataFlusher =
+            new WriteBehindFlusher("song-data", SimpleServer::saveSongData, SONG_FLUSH_INTERVAL_MS, SONG_FLUSH_MAX_DIRTY);
 
     public static void main(String[] args) throws Exception {
+        registerTcpActions();
         loadSongData();
+        songDataFlusher.start();
         loadUserProfiles();
+        songMetadata.load();
+        songCatalog.addListener(exploreCache::invalidate);
+        songCatalog.addListener(() -> searchIndex.sync(songCatalog.songs()));
+        startStatsReporter();
+        songCatalog.start();
         startHttpFileServer();
         startTcpSocketServer();
         startWebSocketServer();
     }
 
-    private static void loadSongData() {
-        File file = new File("song_data.json");
-        if (file.exists()) {
-            try (FileReader reader = new FileReader(file)) {
-                Map<String, Map<String, Double>> data = gson.fromJson(reader, Map.class);
-                if (data != null) {
-                    data.getOrDefault("likes", new HashMap<>())
-                            .forEach((k, v) -> songLikes.put(k, v.intValue()));
-                    data.getOrDefault("views", new HashMap<>())
-                            .forEach((k, v) -> songViews.put(k, v.intValue()));
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+    private static void loadSongData() throws IOException {
+        songCounters = new SongCounters(SongCounterStore.open(new File(SONG_COUNTERS_FILE), new File(SONG_DATA_FILE)));
+        songListeners = new ListenerSketchStore(new File(SONG_LISTENERS_FILE));
+        trending.load();
+        songCounters.addListener((songId, counter, delta) -> {
+            trending.record(songId, counter, delta);
+            trendingFlusher.recordChange();
+        });
+        trendingFlusher.start();
     }
 
     private static void saveSongData() {
-        try (FileWriter writer = new FileWriter("song_data.json")) {
-            Map<String, Object> data = new HashMap<>();
-            data.put("likes", songLikes);
-            data.put("views", songViews);
-            gson.toJson(data, writer);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        songCounters.flush();
+        songListeners.force();
+    }
+
+    // Only songs in the catalog are counted: every counted id takes a slot in the counter
+    // file for good, so client-supplied ids are never trusted as they are.
+    private static boolean incrementCounter(SongCounterStore.Counter counter, String songId) {
+        if (!isCatalogSong(songId)) return false;
+        songCounters.increment(songId, counter);
+        songDataFlusher.recordChange();
+        exploreCache.invalidate();
+        return true;
+    }
+
+    private static boolean isCatalogSong(String songId) {
+        return songId != null && songCatalog.get(songId + ".mp3") != null;
     }
 
     private static void loadUserProfiles() {
+        Map<String, Map<String, Object>> loaded = new HashMap<>();
         File file = new File(USERS_FILE);
         if (file.exists()) {
             try (FileReader reader = new FileReader(file)) {
                 Map<String, Map<String, Object>> data = gson.fromJson(reader, Map.class);
                 if (data != null) {
-                    userProfiles.putAll(data);
+                    loaded.putAll(data);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
-    }
+        int replayed = UserProfileLog.replay(new File(USERS_LOG_FILE), loaded);
+        System.out.println("Replayed " + replayed + " user profile log entries.");
+        userProfiles.putAll(loaded);
 
-    private static void saveUserProfiles() {
-        try (FileWriter writer = new FileWriter(USERS_FILE)) {
-            gson.toJson(userProfiles, writer);
-            System.out.println("User profiles saved to file.");
+        userProfileLog = new UserProfileLog(new File(USERS_FILE), new File(USERS_LOG_FILE), gson, userProfiles::snapshot);
+        try {
+            userProfileLog.open();
         } catch (IOException e) {
-            System.out.println("Error saving user profiles: " + e.getMessage());
+            System.out.println("Error opening user profile log: " + e.getMessage());
             e.printStackTrace();
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(userProfileLog::close));
     }
 
-    private static void startHttpFileServer() throws IOException {
-        HttpServer httpServer = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
-        httpServer.createContext("/songs", new HttpHandler() {
-            @Override
-            public void handle(HttpExchange exchange) throws IOException {
-                if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                    exchange.sendResponseHeaders(405, -1);
-                    return;
-                }
-
-                String path = exchange.getRequestURI().getPath();
-                String filename = path.replaceFirst("/songs/?", "");
-                if (filename.isEmpty()) {
-                    exchange.sendResponseHeaders(400, -1);
-                    return;
-                }
-
-                File file = new File(SONGS_FOLDER, filename);
-                if (!file.exists() || !file.isFile()) {
-                    exchange.sendResponseHeaders(404, -1);
-                    return;
-                }
+    // Must be called while holding the user's lock so the logged values are consistent.
+    private static void saveUserProfile(String username, Map<String, Object> profile, String... fields) {
+        Map<String, Set<String>> batch = batchedChanges.get();
+        if (batch != null) {
+            // written once per user when the batch finishes
+            batch.computeIfAbsent(username, k -> new LinkedHashSet<>()).addAll(Arrays.asList(fields));
+            return;
+        }
+        logProfileUpdate(username, profile, Arrays.asList(fields));
+    }
 
-                exchange.getResponseHeaders().add("Content-Type", "audio/mpeg");
-                long length = file.length();
-                exchange.sendResponseHeaders(200, length);
+    private static void logProfileUpdate(String username, Map<String, Object> profile, Collection<String> fields) {
+        Map<String, Object> changed = new LinkedHashMap<>();
+        for (String field : fields) {
+            changed.put(field, profile.get(field));
+        }
+        userProfileLog.update(username, changed);
+    }
 
-                try (OutputStream os = exchange.getResponseBody();
-                     FileInputStream fis = new FileInputStream(file)) {
-                    byte[] buffer = new byte[8192];
-                    int read;
-                    while ((read = fis.read(buffer)) != -1) {
-                        os.write(buffer, 0, read);
-                    }
-                }
-            }
-        });
-        httpServer.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+    private static void startHttpFileServer() throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
+        httpServer.createContext("/songs", new HttpAdmission(new SongFileHandler(new File(SONGS_FOLDER), songCatalog, HTTP_MAX_STREAMS, songFileCache),
+                HTTP_MAX_STREAMS, HTTP_MAX_PER_CLIENT, HTTP_RETRY_AFTER_SECONDS));
+        // a few threads beyond the stream limit so rejections are answered promptly
+        httpServer.setExecutor("virtual".equals(HTTP_EXECUTOR)
+                ? VirtualThreads.newPerTaskExecutor("HTTP")
+                : HttpAdmission.newBoundedExecutor(HTTP_MAX_STREAMS + 8, HTTP_QUEUE));
         httpServer.start();
         System.out.println("HTTP file server started on port " + HTTP_PORT + " serving folder '" + SONGS_FOLDER + "'");
     }
 
-    private static void startTcpSocketServer() {
+    private static void startTcpSocketServer() throws IOException {
+        if ("nio".equals(TCP_MODE)) {
+            new NioTcpServer(TCP_PORT, TCP_REACTORS, TCP_WORKERS, TCP_MAX_IN_FLIGHT,
+                    SimpleServer::dispatchTcpMessage, SimpleServer::dispatchTcpFrame).start();
+            return;
+        }
+        ExecutorService clients = "virtual".equals(TCP_MODE) ? VirtualThreads.newPerTaskExecutor("TCP") : null;
         new Thread(() -> {
             try (ServerSocket serverSocket = new ServerSocket(TCP_PORT)) {
-                System.out.println("TCP Socket server started on port " + TCP_PORT);
+                System.out.println("TCP Socket server started on port " + TCP_PORT + " (" + TCP_MODE + " threads)");
                 while (true) {
                     Socket socket = serverSocket.accept();
                     System.out.println("TCP client connected: " + socket.getRemoteSocketAddress());
-                    new Thread(() -> handleTcpClient(socket)).start();
+                    if (clients != null) {
+                        clients.execute(() -> handleTcpClient(socket));
+                    } else {
+                        new Thread(() -> handleTcpClient(socket)).start();
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -147,452 +226,723 @@ public class SimpleServer {
 
 
     private static void handleTcpClient(Socket socket) {
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        try (socket) {
+            BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
             OutputStream outputStream = socket.getOutputStream();
-
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                System.out.println("Received data from Flutter: " + inputLine);
-
+            ReentrantLock writeLock = new ReentrantLock();
+            // one permit per request still waiting for its reply: a client that pipelines
+            // faster than it is answered stops being read, and all replies are written
+            // before the socket is closed
+            Semaphore inFlight = new Semaphore(TCP_MAX_IN_FLIGHT);
+            Consumer<ByteBuffer> send = data -> {
+                writeLock.lock();
                 try {
-                    if (inputLine.startsWith("{")) {
-                        Request request = gson.fromJson(inputLine, Request.class);
-                        String response = "";
-
-
-                        switch (request.getAction()) {
-                            case "delete_playlist": {
-                                String payloadJson = request.getPayloadJson();
-                                System.out.println("Received request to delete playlist: " + payloadJson);
-                                Map<String, Object> payloadMap = gson.fromJson(payloadJson, Map.class);
-                                String usernameProfile = (String) payloadMap.get("username");
-                                String playlistId = (String) payloadMap.get("playlistId");
-                                System.out.println("Deleting playlist for username: " + usernameProfile + " with playlistId: " + playlistId);
-                                Map<String, Object> userProfile = userProfiles.getOrDefault(usernameProfile, new HashMap<>());
-                                if (!userProfile.isEmpty()) {
-                                    List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
-                                    playlists.removeIf(playlist -> playlistId.equals(playlist.get("id")));
-                                    System.out.println("Playlist removed successfully for username: " + usernameProfile);
-                                    userProfiles.put(usernameProfile, userProfile);
-
-                                    Map<String, Object> responseMap = new HashMap<>();
-                                    responseMap.put("status", "success");
-                                    response = gson.toJson(responseMap);
-                                } else {
-                                    Map<String, Object> responseMap = new HashMap<>();
-                                    responseMap.put("status", "error");
-                                    response = gson.toJson(responseMap);
-                                }
-                                outputStream.write((response + "\n").getBytes(StandardCharsets.UTF_8));
-                                outputStream.flush();
-
-                                break;
-                            }
-
-                            case "create_playlist": {
-                                String payloadJson = request.getPayloadJson();
-                                Map<String, String> playlistPayload = gson.fromJson(payloadJson, Map.class);
-                                String username = playlistPayload.get("username");
-                                String playlistName = playlistPayload.get("playlistName");
-                                String playlistId = UUID.randomUUID().toString();
-
-                                if (!userProfiles.containsKey(username)) {
-                                    response = "User not found";
-                                } else {
-                                    Map<String, Object> userProfile = userProfiles.get(username);
-                                    List<Map<String, String>> playlists = (List<Map<String, String>>) userProfile.getOrDefault("playlists", new ArrayList<>());
-                                    playlists.add(Map.of("id", playlistId, "name", playlistName));
-
-                                    userProfile.put("playlists", playlists);
-                                    saveUserProfiles();
-                                    response = "Playlist created successfully";
-                                    Map<String, Object> playlistData = Map.of(
-                                            "id", playlistId,
-                                            "name", playlistName
-                                    );
-                                    String jsonResponse = gson.toJson(playlistData);
-                                    outputStream.write((jsonResponse + "\n").getBytes(StandardCharsets.UTF_8));
-                                    outputStream.flush();
-                                }
-                                break;
-                            }
-
-
-                            case "login": {
-                                LoginRequest loginRequest = gson.fromJson(request.getPayloadJson(), LoginRequest.class);
-                                response = handleLogin(loginRequest.getUsername(), loginRequest.getPassword());
-                                break;
-                            }
-
-                            case "signup": {
-                                Map<String, String> signupPayload = gson.fromJson(request.getPayloadJson(), Map.class);
-                                response = handleSignup(signupPayload);
-                                break;
-                            }
-
-                            case "like_song": {
-                                String songIdLike = request.getPayloadJson().replace("\"", "");
-                                songLikes.put(songIdLike, songLikes.getOrDefault(songIdLike, 0) + 1);
-                                saveSongData();
-                                response = "success";
-                                break;
-                            }
-
-                            case "increment_view": {
-                                String songIdView = request.getPayloadJson().replace("\"", "");
-                                songViews.put(songIdView, songViews.getOrDefault(songIdView, 0) + 1);
-                                saveSongData();
-                                response = "success";
-                                break;
-                            }
-
-                            case "get_profile": {
-                                String payloadJson = request.getPayloadJson();
-                                System.out.println("Received request for user profile: " + payloadJson);
-
-                                Map<String, Object> payloadMap = gson.fromJson(payloadJson, Map.class);
-                                String usernameProfile = (String) payloadMap.get("username");
-
-                                System.out.println("Requested profile for username: " + usernameProfile);
-
-                                Map<String, Object> userProfile = userProfiles.getOrDefault(usernameProfile, new HashMap<>());
-
-                                List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
-                                List<Map<String, Object>> songs = (List<Map<String, Object>>) userProfile.get("songs");
-
-                                userProfile.put("playlists", playlists);
-                                userProfile.put("songs", songs);
-
-                                response = gson.toJson(userProfile);
-                                System.out.println("Response to be sent to client: " + response);
-
-                                outputStream.write((response + "\n").getBytes(StandardCharsets.UTF_8));
-                                outputStream.flush();
-
-                                break;
-                            }
-
-                            case "update_theme": {
-                                Map<String, String> themePayload = gson.fromJson(request.getPayloadJson(), Map.class);
-                                String userTheme = themePayload.get("username");
-                                String theme = themePayload.get("theme");
-                                if (userProfiles.containsKey(userTheme)) {
-                                    userProfiles.get(userTheme).put("theme", theme);
-                                    saveUserProfiles();
-                                    response = "theme updated";
-                                } else {
-                                    response = "user not found";
-                                }
-                                break;
-                            }
-
-                            case "update_profile": {
-                                Map<String, Object> updatePayload = gson.fromJson(request.getPayloadJson(), Map.class);
-                                String updateUser = (String) updatePayload.get("username");
-
-                                if (updateUser != null && userProfiles.containsKey(updateUser)) {
-                                    Map<String, Object> profile = userProfiles.get(updateUser);
-
-                                    if (updatePayload.containsKey("email")) {
-                                        profile.put("email", updatePayload.get("email"));
-                                    }
-                                    if (updatePayload.containsKey("password")) {
-                                        profile.put("password", updatePayload.get("password"));
-                                    }
-                                    if (updatePayload.containsKey("theme")) {
-                                        profile.put("theme", updatePayload.get("theme"));
-                                    }
-                                    if (updatePayload.containsKey("profileImage")) {
-                                        profile.put("profileImage", updatePayload.get("profileImage"));
-                                    }
-                                    saveUserProfiles();
-                                    response = "profile updated";
-                                } else {
-                                    response = "user not found";
-                                }
-                                break;
-                            }
-
-                            case "delete_account": {
-                                String deleteUser = request.getPayloadJson().replace("\"", "");
-                                if (deleteUser != null && userProfiles.containsKey(deleteUser)) {
-                                    userProfiles.remove(deleteUser);
-                                    saveUserProfiles();
-                                    response = "success";
-                                } else {
-                                    response = "user not found";
-                                }
-                                break;
-                            }
-
-
-                            case "add_song_to_playlist": {
-                                String payloadJson = request.getPayloadJson();
-                                Map<String, String> payload = gson.fromJson(payloadJson, Map.class);
-                                String username = payload.get("username");
-                                String playlistName = payload.get("playlistName");
-                                String songId = payload.get("songId");
-
-                                if (!userProfiles.containsKey(username)) {
-                                    response = "User not found";
-                                } else {
-                                    Map<String, Object> userProfile = userProfiles.get(username);
-                                    List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
-
-                                    for (Map<String, Object> playlist : playlists) {
-                                        if (playlist.get("name").equals(playlistName)) {
-                                            List<String> songs = (List<String>) playlist.get("songs");
-                                            if (!songs.contains(songId)) {
-                                                songs.add(songId);
-                                                saveUserProfiles();
-                                                response = "Song added to playlist successfully";
-                                            } else {
-                                                response = "Song already in playlist";
-                                            }
-                                            break;
-                                        }
-                                    }
-                                }
-                                break;
-                            }
-
-                            case "add_song_to_profile": {
-                                String payloadJson = request.getPayloadJson();
-                                System.out.println("Received request to add song to profile: " + payloadJson);
-
-                                Map<String, Object> payloadMap = gson.fromJson(payloadJson, Map.class);
-                                String usernameProfile = (String) payloadMap.get("username");
-                                String songId = (String) payloadMap.get("songId");
-
-                                System.out.println("Adding song with id: " + songId + " to profile for username: " + usernameProfile);
-
-                                Map<String, Object> userProfile = userProfiles.getOrDefault(usernameProfile, new HashMap<>());
-
-                                if (!userProfile.isEmpty()) {
-                                    List<Map<String, Object>> songs = (List<Map<String, Object>>) userProfile.get("songs");
-
-                                    if (songs == null) {
-                                        songs = new ArrayList<>();
-                                    }
-
-                                    Map<String, Object> newSong = new HashMap<>();
-                                    newSong.put("id", songId);
-
-                                    songs.add(newSong);
-                                    userProfile.put("songs", songs);
-                                    userProfiles.put(usernameProfile, userProfile);
-                                    System.out.println("Song added successfully to profile for username: " + usernameProfile);
-
-                                    Map<String, Object> responseMap = new HashMap<>();
-                                    responseMap.put("status", "success");
-                                    response = gson.toJson(responseMap);
-                                } else {
-                                    Map<String, Object> responseMap = new HashMap<>();
-                                    responseMap.put("status", "error");
-                                    response = gson.toJson(responseMap);
-                                }
-
-                                outputStream.write((response + "\n").getBytes(StandardCharsets.UTF_8));
-                                outputStream.flush();
-
-                                break;
-                            }
-
-
-                            case "remove_song_from_playlist": {
-                                String payloadJson = request.getPayloadJson();
-                                Map<String, String> payload = gson.fromJson(payloadJson, Map.class);
-                                String username = payload.get("username");
-                                String playlistName = payload.get("playlistName");
-                                String songId = payload.get("songId");
-
-                                if (!userProfiles.containsKey(username)) {
-                                    response = "User not found";
-                                } else {
-                                    Map<String, Object> userProfile = userProfiles.get(username);
-                                    List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
-
-                                    for (Map<String, Object> playlist : playlists) {
-                                        if (playlist.get("name").equals(playlistName)) {
-                                            List<String> songs = (List<String>) playlist.get("songs");
-                                            if (songs.contains(songId)) {
-                                                songs.remove(songId);
-                                                saveUserProfiles();
-                                                response = "Song removed from playlist successfully";
-                                            } else {
-                                                response = "Song not found in playlist";
-                                            }
-                                            break;
-                                        }
-                                    }
-                                }
-                                break;
-                            }
-
-
-                            default:
-                                response = "Invalid action";
-                        }
-
-                        outputStream.write((response + "\n").getBytes(StandardCharsets.UTF_8));
-                        outputStream.flush();
-                    } else {
-                        System.out.println("Invalid JSON format received: " + inputLine);
-                        outputStream.write("Invalid JSON format\n".getBytes(StandardCharsets.UTF_8));
-                        outputStream.flush();
-                    }
-                } catch (Exception e) {
-                    System.out.println("Error processing JSON: " + e.getMessage());
-                    outputStream.write("Error processing JSON\n".getBytes(StandardCharsets.UTF_8));
+                    outputStream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
                     outputStream.flush();
+                } catch (IOException e) {
+                    System.out.println("TCP client connection error: " + e.getMessage());
+                } finally {
+                    writeLock.unlock();
+                    inFlight.release();
+                }
+            };
+
+            input.mark(1);
+            if (input.read() == BinaryFrames.MAGIC[0]) {
+                if (BinaryFrames.readMagicRest(input)) {
+                    DataInputStream in = new DataInputStream(input);
+                    ByteBuffer frame;
+                    while ((frame = BinaryFrames.readFrame(in)) != null) {
+                        inFlight.acquire();
+                        dispatchTcpFrame(frame, send);
+                    }
+                } else {
+                    System.out.println("Unknown protocol prefix from " + socket.getRemoteSocketAddress());
+                }
+            } else {
+                input.reset();
+                BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                String inputLine;
+                while ((inputLine = in.readLine()) != null) {
+                    inFlight.acquire();
+                    dispatchTcpMessage(inputLine, responses -> {
+                        StringBuilder out = new StringBuilder();
+                        for (String response : responses) {
+                            out.append(response).append('\n');
+                        }
+                        send.accept(ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8)));
+                    });
                 }
             }
 
-            socket.close();
+            inFlight.acquire(TCP_MAX_IN_FLIGHT);
         } catch (IOException e) {
             System.out.println("TCP client connection error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private static String handleLogin(String username, String password) {
-        if (!userProfiles.containsKey(username)) {
-            return "user not found";
+    // Handles one line of the TCP protocol and calls reply exactly once with the lines to
+    // send back. Requests without a requestId run on the calling thread, so a connection
+    // is answered in order. Requests carrying one run on the pipeline pool and get a single
+    // {"requestId", "response"} line whenever they finish, in any order; the reply is sent
+    // from a finally so that a failing action still answers and frees its in-flight slot.
+    // Shared by the thread-per-connection server and NioTcpServer.
+    static void dispatchTcpMessage(String inputLine, Consumer<List<String>> reply) {
+        System.out.println("Received data from Flutter: " + inputLine);
+        if (!inputLine.startsWith("{")) {
+            System.out.println("Invalid JSON format received: " + inputLine);
+            reply.accept(List.of("Invalid JSON format"));
+            return;
         }
-        String savedPassword = (String) userProfiles.get(username).get("password");
-        if (password != null && password.equals(savedPassword)) {
-            return "Welcome, " + username;
-        } else {
-            return "wrong password";
+
+        TcpActionRegistry.Call call;
+        try {
+            call = tcpActions.decode(inputLine);
+        } catch (Exception e) {
+            System.out.println("Error processing JSON: " + e.getMessage());
+            reply.accept(List.of("Error processing JSON"));
+            return;
         }
-    }
 
-    private static String handleCreatePlaylist(String username, String playlistName) {
-        if (!userProfiles.containsKey(username)) {
-            return "user not found";
+        if (call.getRequestId() == null) {
+            reply.accept(handleTcpRequest(call));
+            return;
         }
+        tcpPipeline.execute(() -> {
+            List<String> responses = TCP_REQUEST_FAILED;
+            try {
+                responses = handleTcpRequest(call);
+            } finally {
+                // actions that answer with a JSON body and then a status line keep the body
+                Map<String, Object> envelope = new LinkedHashMap<>();
+                envelope.put("requestId", call.getRequestId());
+                envelope.put("response", responses.isEmpty() ? "" : responses.get(0));
+                reply.accept(List.of(gson.toJson(envelope)));
+            }
+        });
+    }
 
-        Map<String, Object> userProfile = userProfiles.get(username);
-        List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+    // Binary counterpart of dispatchTcpMessage for connections using BinaryFrames. The
+    // requestId travels in the response frame, and every response line is kept.
+    static void dispatchTcpFrame(ByteBuffer frame, Consumer<ByteBuffer> reply) {
+        TcpActionRegistry.Call call;
+        try {
+            call = BinaryFrames.decodeRequest(frame, tcpActions);
+        } catch (Exception e) {
+            System.out.println("Invalid frame: " + e);
+            reply.accept(BinaryFrames.encodeResponse(null, List.of("Invalid frame")));
+            return;
+        }
+        System.out.println("Received frame from Flutter: " + call.getAction());
 
-        for (Map<String, Object> playlist : playlists) {
-            if (playlist.get("playlistName").equals(playlistName)) {
-                return "playlist already exists";
+        if (call.getRequestId() == null) {
+            reply.accept(BinaryFrames.encodeResponse(null, handleTcpRequest(call)));
+            return;
+        }
+        tcpPipeline.execute(() -> {
+            List<String> responses = TCP_REQUEST_FAILED;
+            try {
+                responses = handleTcpRequest(call);
+            } finally {
+                reply.accept(BinaryFrames.encodeResponse(call.getRequestId(), responses));
             }
+        });
+    }
+
+    private static final List<String> TCP_REQUEST_FAILED = List.of("Error processing JSON");
+
+    private static List<String> handleTcpRequest(TcpActionRegistry.Call call) {
+        try {
+            return call.run();
+        } catch (Exception e) {
+            System.out.println("Error processing JSON: " + e.getMessage());
+            return TCP_REQUEST_FAILED;
         }
-        Map<String, Object> newPlaylist = new HashMap<>();
-        newPlaylist.put("playlistName", playlistName);
-        newPlaylist.put("songs", new ArrayList<>());
+    }
 
-        playlists.add(newPlaylist);
+    // Each TCP action with the payload class its request decodes into. Actions that answer
+    // with a JSON body send it before the status line.
+    private static void registerTcpActions() {
+        tcpActions.register("delete_playlist", PlaylistRequest.class, SimpleServer::deletePlaylist);
+        tcpActions.register("create_playlist", PlaylistRequest.class, SimpleServer::createPlaylist);
+        tcpActions.register("login", LoginRequest.class,
+                request -> List.of(handleLogin(request.getUsername(), request.getPassword())));
+        tcpActions.register("signup", ProfileRequest.class, request -> List.of(handleSignup(request)));
+        tcpActions.register("like_song", String.class,
+                songId -> List.of(incrementCounter(SongCounterStore.Counter.LIKES, songId) ? "success" : "Invalid song"));
+        tcpActions.register("increment_view", ViewRequest.class, SimpleServer::incrementView);
+        tcpActions.register("get_profile", ProfileRequest.class, SimpleServer::getProfile);
+        tcpActions.register("update_theme", ProfileRequest.class, SimpleServer::updateTheme);
+        tcpActions.register("update_profile", ProfileRequest.class, SimpleServer::updateProfile);
+        tcpActions.register("delete_account", String.class, SimpleServer::deleteAccount);
+        tcpActions.register("add_song_to_playlist", PlaylistRequest.class, SimpleServer::addSongToPlaylist);
+        tcpActions.register("add_song_to_profile", PlaylistRequest.class, SimpleServer::addSongToProfile);
+        tcpActions.register("remove_song_from_playlist", PlaylistRequest.class, SimpleServer::removeSongFromPlaylist);
+        tcpActions.register("batch", BatchRequest.class, SimpleServer::runBatch);
+        tcpActions.register("search_songs", SearchRequest.class, SimpleServer::searchSongs);
+        tcpActions.register("get_top_songs", TopSongsRequest.class, SimpleServer::getTopSongs);
+        tcpActions.register("get_trending", TrendingRequest.class, SimpleServer::getTrending);
+        tcpActions.register("get_cache_stats", String.class,
+                ignored -> List.of(gson.toJson(songFileCache == null ? Map.of() : songFileCache.stats())));
+        tcpActions.register("get_genres", String.class, ignored -> List.of(exploreCache.get().index.genres()));
+        tcpActions.register("get_genre_songs", GenreRequest.class, SimpleServer::getGenreSongs);
+    }
 
-        saveUserProfiles();
+    // A view from a known user counts once per views.dedupSeconds and adds the user to the
+    // song's distinct listeners; anonymous views (the old plain song id payload, or a blank
+    // username) always count. Repeats are still answered with success, the client has
+    // nothing to fix. The song is checked against the catalog first, so unknown ids never
+    // reach the repeat filter or take a slot in the listener sketches.
+    private static List<String> incrementView(ViewRequest request) {
+        if (!isCatalogSong(request.getSongId())) return List.of("Invalid song");
+        String username = request.getUsername();
+        if (username != null && !username.isBlank()) {
+            if (recentListeners.isRepeat(request.getSongId(), username)) return List.of("success");
+            songListeners.add(request.getSongId(), username);
+        }
+        incrementCounter(SongCounterStore.Counter.VIEWS, request.getSongId());
+        return List.of("success");
+    }
+
+    // The most liked (or, with "by": "views", most viewed) songs still in the catalog as a
+    // JSON array of explore entries, read off the leaderboard rather than sorting counters.
+    private static List<String> getTopSongs(TopSongsRequest request) {
+        SongCounterStore.Counter counter;
+        try {
+            counter = request.getBy() == null ? SongCounterStore.Counter.LIKES : SongCounterStore.Counter.valueOf(request.getBy().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return List.of("Invalid counter");
+        }
+        int limit = request.getLimit() == null ? TOP_DEFAULT_RESULTS : Math.min(request.getLimit(), TOP_MAX_RESULTS);
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String songId : songCounters.leaderboard(counter).top(limit, id -> songCatalog.get(id + ".mp3") != null).keySet()) {
+            SongCatalog.Song song = songCatalog.get(songId + ".mp3");
+            if (song == null) continue; // removed since ranking
+            results.add(songData(song,
+                    songCounters.get(songId, SongCounterStore.Counter.LIKES),
+                    songCounters.get(songId, SongCounterStore.Counter.VIEWS)));
+        }
+        return List.of(gson.toJson(results));
+    }
 
-        return "playlist created successfully";
+    // Songs with the most plays and likes in the last hour, day or week, or (the default,
+    // "window": "decayed") by exponentially decayed score; each entry carries its "trend".
+    private static List<String> getTrending(TrendingRequest request) {
+        TrendingEngine.Window window;
+        try {
+            window = request.getWindow() == null ? TrendingEngine.Window.DECAYED : TrendingEngine.Window.valueOf(request.getWindow().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return List.of("Invalid window");
+        }
+        int limit = request.getLimit() == null ? TOP_DEFAULT_RESULTS : Math.min(request.getLimit(), TOP_MAX_RESULTS);
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (Map.Entry<String, Double> e : trending.top(window, limit, id -> songCatalog.get(id + ".mp3") != null).entrySet()) {
+            SongCatalog.Song song = songCatalog.get(e.getKey() + ".mp3");
+            if (song == null) continue; // removed since ranking
+            Map<String, Object> songData = songData(song,
+                    songCounters.get(song.id, SongCounterStore.Counter.LIKES),
+                    songCounters.get(song.id, SongCounterStore.Counter.VIEWS));
+            songData.put("trend", Math.round(e.getValue() * 100) / 100.0);
+            results.add(songData);
+        }
+        return List.of(gson.toJson(results));
     }
 
+    // One page of the songs of a genre (or of an artist when no genre is given), paged and
+    // sorted like the explore listing.
+    private static List<String> getGenreSongs(GenreRequest request) {
+        ExploreIndex.Attribute attribute = request.getGenre() != null ? ExploreIndex.Attribute.GENRE : ExploreIndex.Attribute.ARTIST;
+        String value = request.getGenre() != null ? request.getGenre() : request.getArtist();
+        if (value == null) return List.of("Invalid genre");
+        ExploreCache.Snapshot snapshot = exploreCache.get();
+        ExploreIndex.Sort sort;
+        try {
+            sort = parseSort(request.getSort());
+        } catch (IllegalArgumentException e) {
+            return List.of("Invalid sort");
+        }
+        int size = request.getPageSize() == null ? EXPLORE_DEFAULT_PAGE : request.getPageSize();
+        if (size <= 0) return List.of("Invalid page size");
+        try {
+            return List.of(snapshot.index.page(attribute, value, sort, request.getCursor(), Math.min(size, EXPLORE_MAX_PAGE), snapshot.version));
+        } catch (IllegalArgumentException e) {
+            return List.of("Invalid cursor");
+        }
+    }
 
-    private static String handleAddSongToPlaylist(String username, String playlistName, String songId) {
-        if (!userProfiles.containsKey(username)) {
-            return "user not found";
+    // Top matches for the query as a JSON array of explore entries with a score.
+    private static List<String> searchSongs(SearchRequest request) {
+        int limit = request.getLimit() == null ? SEARCH_DEFAULT_RESULTS : Math.min(request.getLimit(), SEARCH_MAX_RESULTS);
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (SearchIndex.Hit hit : searchIndex.search(request.getQuery(), limit)) {
+            Map<String, Object> songData = songData(hit.song,
+                    songCounters.get(hit.song.id, SongCounterStore.Counter.LIKES),
+                    songCounters.get(hit.song.id, SongCounterStore.Counter.VIEWS));
+            songData.put("score", hit.score);
+            results.add(songData);
         }
+        return List.of(gson.toJson(results));
+    }
 
-        Map<String, Object> userProfile = userProfiles.get(username);
-        List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+    private static void startStatsReporter() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            LatencyHistogram window = searchIndex.latency().drain();
+            if (window.count() > 0) {
+                System.out.println("Search latency (last " + STATS_SECONDS + "s): " + window.summary());
+            }
+            if (songFileCache != null) {
+                System.out.println("Song file cache: " + songFileCache.stats());
+            }
+        }, STATS_SECONDS, STATS_SECONDS, TimeUnit.SECONDS);
+    }
 
-        for (Map<String, Object> playlist : playlists) {
-            if (playlist.get("playlistName").equals(playlistName)) {
-                List<String> songs = (List<String>) playlist.get("songs");
-                if (!songs.contains(songId)) {
-                    songs.add(songId);
-                    saveUserProfiles();
-                    return "Song added to playlist successfully";
-                } else {
-                    return "Song already in playlist";
+    // signup takes the global signup lock and scans every user, so it cannot run while a
+    // batch holds user locks
+    private static final Set<String> NOT_BATCHABLE = Set.of("batch", "signup");
+
+    // Runs the sub-requests in order while holding each involved user's lock once, writes one
+    // log entry per changed user at the end, and answers with a JSON array holding the
+    // response lines of every item.
+    private static List<String> runBatch(BatchRequest batch) {
+        List<BatchItem> items = batch.getRequests() == null ? List.of() : batch.getRequests();
+        List<List<String>> results = new ArrayList<>();
+        List<TcpActionRegistry.Call> calls = new ArrayList<>();
+        List<String> users = new ArrayList<>();
+        for (BatchItem item : items) {
+            TcpActionRegistry.Call call = null;
+            List<String> result = null;
+            if (NOT_BATCHABLE.contains(item.getAction())) {
+                result = List.of("Invalid action in batch");
+            } else {
+                try {
+                    call = tcpActions.call(item.getAction(), null, item.getPayload());
+                } catch (Exception e) {
+                    result = List.of("Error processing JSON");
                 }
             }
+            if (call != null) {
+                if (call.getPayload() instanceof UserScoped) {
+                    users.add(((UserScoped) call.getPayload()).getUsername());
+                } else if ("delete_account".equals(call.getAction())) {
+                    users.add((String) call.getPayload());
+                }
+            }
+            calls.add(call);
+            results.add(result);
         }
 
-        return "Playlist not found";
+        Map<String, Set<String>> changes = new LinkedHashMap<>();
+        userProfiles.withUsers(users, () -> {
+            batchedChanges.set(changes);
+            try {
+                for (int i = 0; i < calls.size(); i++) {
+                    if (calls.get(i) != null) results.set(i, handleTcpRequest(calls.get(i)));
+                }
+            } finally {
+                batchedChanges.remove();
+            }
+            changes.forEach((username, fields) -> userProfiles.withProfile(username, profile -> {
+                if (profile != null) logProfileUpdate(username, profile, fields);
+                return null;
+            }));
+        });
+        return List.of(gson.toJson(results));
+    }
+
+    private static List<String> deletePlaylist(PlaylistRequest request) {
+        String usernameProfile = request.getUsername();
+        String playlistId = request.getPlaylistId();
+        System.out.println("Deleting playlist for username: " + usernameProfile + " with playlistId: " + playlistId);
+        String response = userProfiles.withProfile(usernameProfile, userProfile -> {
+            Map<String, Object> responseMap = new HashMap<>();
+            if (userProfile != null && !userProfile.isEmpty()) {
+                List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+                playlists.removeIf(playlist -> playlistId.equals(playlist.get("id")));
+                System.out.println("Playlist removed successfully for username: " + usernameProfile);
+                responseMap.put("status", "success");
+            } else {
+                responseMap.put("status", "error");
+            }
+            return gson.toJson(responseMap);
+        });
+        return List.of(response, response);
     }
 
+    private static List<String> createPlaylist(PlaylistRequest request) {
+        String username = request.getUsername();
+        String playlistName = request.getPlaylistName();
+        String playlistId = UUID.randomUUID().toString();
+
+        String jsonResponse = userProfiles.withProfile(username, userProfile -> {
+            if (userProfile == null) return null;
+            List<Map<String, String>> playlists = (List<Map<String, String>>) userProfile.getOrDefault("playlists", new ArrayList<>());
+            playlists.add(Map.of("id", playlistId, "name", playlistName));
+
+            userProfile.put("playlists", playlists);
+            saveUserProfile(username, userProfile, "playlists");
+            Map<String, Object> playlistData = Map.of(
+                    "id", playlistId,
+                    "name", playlistName
+            );
+            return gson.toJson(playlistData);
+        });
+        if (jsonResponse == null) return List.of("User not found");
+        return List.of(jsonResponse, "Playlist created successfully");
+    }
 
-    private static String handleRemoveSongFromPlaylist(String username, String playlistName, String songId) {
-        if (!userProfiles.containsKey(username)) {
-            return "user not found";
-        }
+    private static List<String> getProfile(ProfileRequest request) {
+        String usernameProfile = request.getUsername();
+        System.out.println("Requested profile for username: " + usernameProfile);
 
-        Map<String, Object> userProfile = userProfiles.get(username);
-        List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+        String response = userProfiles.withProfile(usernameProfile,
+                userProfile -> gson.toJson(userProfile == null ? new HashMap<>() : userProfile));
+        System.out.println("Response to be sent to client: " + response);
+        return List.of(response, response);
+    }
 
-        for (Map<String, Object> playlist : playlists) {
-            if (playlist.get("playlistName").equals(playlistName)) {
-                List<String> songs = (List<String>) playlist.get("songs");
-                if (songs.contains(songId)) {
-                    songs.remove(songId);
-                    saveUserProfiles();
-                    return "Song removed from playlist successfully";
-                } else {
-                    return "Song not found in playlist";
+    private static List<String> updateTheme(ProfileRequest request) {
+        String userTheme = request.getUsername();
+        String theme = request.getTheme();
+        String response = userProfiles.withProfile(userTheme, profile -> {
+            if (profile == null) return "user not found";
+            profile.put("theme", theme);
+            saveUserProfile(userTheme, profile, "theme");
+            return "theme updated";
+        });
+        return List.of(response);
+    }
+
+    // Only the fields present in the request are changed.
+    private static List<String> updateProfile(ProfileRequest request) {
+        String updateUser = request.getUsername();
+        String response = userProfiles.withProfile(updateUser, profile -> {
+            if (profile == null) return "user not found";
+
+            // only the changed fields are logged; an untouched profileImage can be large
+            List<String> changed = new ArrayList<>();
+            if (request.getEmail() != null) {
+                profile.put("email", request.getEmail());
+                changed.add("email");
+            }
+            if (request.getPassword() != null) {
+                profile.put("password", request.getPassword());
+                changed.add("password");
+            }
+            if (request.getTheme() != null) {
+                profile.put("theme", request.getTheme());
+                changed.add("theme");
+            }
+            if (request.getProfileImage() != null) {
+                profile.put("profileImage", request.getProfileImage());
+                changed.add("profileImage");
+            }
+            if (!changed.isEmpty()) {
+                saveUserProfile(updateUser, profile, changed.toArray(new String[0]));
+            }
+            return "profile updated";
+        });
+        return List.of(response);
+    }
+
+    private static List<String> deleteAccount(String deleteUser) {
+        String response = userProfiles.withProfile(deleteUser, profile -> {
+            if (profile == null) return "user not found";
+            userProfiles.remove(deleteUser);
+            userProfileLog.remove(deleteUser);
+            return "success";
+        });
+        return List.of(response);
+    }
+
+    private static List<String> addSongToPlaylist(PlaylistRequest request) {
+        String username = request.getUsername();
+        String playlistName = request.getPlaylistName();
+        String songId = request.getSongId();
+
+        String response = userProfiles.withProfile(username, userProfile -> {
+            if (userProfile == null) return "User not found";
+            List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+
+            for (Map<String, Object> playlist : playlists) {
+                if (playlist.get("name").equals(playlistName)) {
+                    List<String> songs = (List<String>) playlist.get("songs");
+                    if (!songs.contains(songId)) {
+                        songs.add(songId);
+                        saveUserProfile(username, userProfile, "playlists");
+                        return "Song added to playlist successfully";
+                    } else {
+                        return "Song already in playlist";
+                    }
                 }
             }
-        }
+            return "";
+        });
+        return List.of(response);
+    }
+
+    private static List<String> addSongToProfile(PlaylistRequest request) {
+        String usernameProfile = request.getUsername();
+        String songId = request.getSongId();
+
+        System.out.println("Adding song with id: " + songId + " to profile for username: " + usernameProfile);
+
+        String response = userProfiles.withProfile(usernameProfile, userProfile -> {
+            Map<String, Object> responseMap = new HashMap<>();
+            if (userProfile != null && !userProfile.isEmpty()) {
+                List<Map<String, Object>> songs = (List<Map<String, Object>>) userProfile.get("songs");
+
+                if (songs == null) {
+                    songs = new ArrayList<>();
+                }
+
+                Map<String, Object> newSong = new HashMap<>();
+                newSong.put("id", songId);
+
+                songs.add(newSong);
+                userProfile.put("songs", songs);
+                System.out.println("Song added successfully to profile for username: " + usernameProfile);
+
+                responseMap.put("status", "success");
+            } else {
+                responseMap.put("status", "error");
+            }
+            return gson.toJson(responseMap);
+        });
+        return List.of(response, response);
+    }
 
-        return "Playlist not found";
+    private static List<String> removeSongFromPlaylist(PlaylistRequest request) {
+        String username = request.getUsername();
+        String playlistName = request.getPlaylistName();
+        String songId = request.getSongId();
+
+        String response = userProfiles.withProfile(username, userProfile -> {
+            if (userProfile == null) return "User not found";
+            List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+
+            for (Map<String, Object> playlist : playlists) {
+                if (playlist.get("name").equals(playlistName)) {
+                    List<String> songs = (List<String>) playlist.get("songs");
+                    if (songs.contains(songId)) {
+                        songs.remove(songId);
+                        saveUserProfile(username, userProfile, "playlists");
+                        return "Song removed from playlist successfully";
+                    } else {
+                        return "Song not found in playlist";
+                    }
+                }
+            }
+            return "";
+        });
+        return List.of(response);
+    }
+
+    private static String handleLogin(String username, String password) {
+        return userProfiles.withProfile(username, profile -> {
+            if (profile == null) {
+                return "user not found";
+            }
+            String savedPassword = (String) profile.get("password");
+            if (password != null && password.equals(savedPassword)) {
+                return "Welcome, " + username;
+            } else {
+                return "wrong password";
+            }
+        });
     }
 
+    private static String handleCreatePlaylist(String username, String playlistName) {
+        return userProfiles.withProfile(username, userProfile -> {
+            if (userProfile == null) {
+                return "user not found";
+            }
 
-    private static String handleGetPlaylists(String username) {
-        if (!userProfiles.containsKey(username)) {
-            return "user not found";
-        }
+            List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+
+            for (Map<String, Object> playlist : playlists) {
+                if (playlist.get("playlistName").equals(playlistName)) {
+                    return "playlist already exists";
+                }
+            }
+            Map<String, Object> newPlaylist = new HashMap<>();
+            newPlaylist.put("playlistName", playlistName);
+            newPlaylist.put("songs", new ArrayList<>());
+
+            playlists.add(newPlaylist);
+
+            saveUserProfile(username, userProfile, "playlists");
 
-        Map<String, Object> userProfile = userProfiles.get(username);
-        List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+            return "playlist created successfully";
+        });
+    }
+
+
+    private static String handleAddSongToPlaylist(String username, String playlistName, String songId) {
+        return userProfiles.withProfile(username, userProfile -> {
+            if (userProfile == null) {
+                return "user not found";
+            }
+
+            List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+
+            for (Map<String, Object> playlist : playlists) {
+                if (playlist.get("playlistName").equals(playlistName)) {
+                    List<String> songs = (List<String>) playlist.get("songs");
+                    if (!songs.contains(songId)) {
+                        songs.add(songId);
+                        saveUserProfile(username, userProfile, "playlists");
+                        return "Song added to playlist successfully";
+                    } else {
+                        return "Song already in playlist";
+                    }
+                }
+            }
 
-        return gson.toJson(playlists);
+            return "Playlist not found";
+        });
     }
 
 
-    private static String handleSignup(Map<String, String> payload) {
-        String username = payload.get("username");
-        String password = payload.get("password");
-        String email = payload.get("email");
+    private static String handleRemoveSongFromPlaylist(String username, String playlistName, String songId) {
+        return userProfiles.withProfile(username, userProfile -> {
+            if (userProfile == null) {
+                return "user not found";
+            }
 
-        System.out.println("Received signup data: " + payload);
+            List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
 
-        if (username == null || username.trim().isEmpty()) return "invalid username";
-        if (password == null || password.trim().isEmpty()) return "invalid password";
-        if (email == null || email.trim().isEmpty()) return "invalid email";
+            for (Map<String, Object> playlist : playlists) {
+                if (playlist.get("playlistName").equals(playlistName)) {
+                    List<String> songs = (List<String>) playlist.get("songs");
+                    if (songs.contains(songId)) {
+                        songs.remove(songId);
+                        saveUserProfile(username, userProfile, "playlists");
+                        return "Song removed from playlist successfully";
+                    } else {
+                        return "Song not found in playlist";
+                    }
+                }
+            }
 
-        if (userProfiles.containsKey(username)) return "username already taken";
+            return "Playlist not found";
+        });
+    }
 
-        for (Map<String, Object> profile : userProfiles.values()) {
-            Object em = profile.get("email");
-            if (em != null && email.equals(em.toString())) return "email already taken";
-        }
 
-        Map<String, Object> newProfile = new HashMap<>();
-        newProfile.put("email", email);
-        newProfile.put("password", password);
-        newProfile.put("theme", "light");
-        newProfile.put("profileImage", null);
+    private static String handleGetPlaylists(String username) {
+        return userProfiles.withProfile(username, userProfile -> {
+            if (userProfile == null) {
+                return "user not found";
+            }
+            List<Map<String, Object>> playlists = (List<Map<String, Object>>) userProfile.get("playlists");
+            return gson.toJson(playlists);
+        });
+    }
 
-        List<Map<String, Object>> playlists = new ArrayList<>();
-        newProfile.put("playlists", playlists);
 
-        List<String> likedSongs = new ArrayList<>();
-        newProfile.put("likedSongs", likedSongs);
+    private static String handleSignup(ProfileRequest payload) {
+        String username = payload.getUsername();
+        String password = payload.getPassword();
+        String email = payload.getEmail();
 
-        userProfiles.put(username, newProfile);
+        System.out.println("Received signup data: username=" + username + ", email=" + email);
 
-        System.out.println("User profiles after adding new user: " + gson.toJson(userProfiles));
+        if (username == null || username.trim().isEmpty()) return "invalid username";
+        if (password == null || password.trim().isEmpty()) return "invalid password";
+        if (email == null || email.trim().isEmpty()) return "invalid email";
 
-        saveUserProfiles();
+        // serializes signups so two new accounts cannot claim the same email
+        signupLock.lock();
+        try {
+            if (userProfiles.contains(username)) return "username already taken";
+
+            if (userProfiles.anyMatch(profile -> {
+                Object em = profile.get("email");
+                return em != null && email.equals(em.toString());
+            })) return "email already taken";
+
+            Map<String, Object> newProfile = new HashMap<>();
+            newProfile.put("email", email);
+            newProfile.put("password", password);
+            newProfile.put("theme", "light");
+            newProfile.put("profileImage", null);
+
+            List<Map<String, Object>> playlists = new ArrayList<>();
+            newProfile.put("playlists", playlists);
+
+            List<String> likedSongs = new ArrayList<>();
+            newProfile.put("likedSongs", likedSongs);
+
+            boolean created = userProfiles.withProfile(username, existing -> {
+                if (existing != null || !userProfiles.putIfAbsent(username, newProfile)) return false;
+                userProfileLog.put(username, newProfile);
+                return true;
+            });
+            if (!created) return "username already taken";
+        } finally {
+            signupLock.unlock();
+        }
 
         return "user registered successfully";
     }
 
+    private static ExploreIndex renderExploreSongs() {
+        List<ExploreIndex.Entry> songs = new ArrayList<>();
+        for (SongCatalog.Song song : songCatalog.songs()) {
+            long likes = songCounters.get(song.id, SongCounterStore.Counter.LIKES);
+            long views = songCounters.get(song.id, SongCounterStore.Counter.VIEWS);
+            songs.add(new ExploreIndex.Entry(song.id, song.title, song.genre, song.artist, likes, views,
+                    gson.toJson(songData(song, likes, views))));
+        }
+        return new ExploreIndex(songs);
+    }
+
+    private static Map<String, Object> songData(SongCatalog.Song song, long likes, long views) {
+        Map<String, Object> songData = new HashMap<>();
+        songData.put("id", song.id);
+        songData.put("title", song.title);
+        songData.put("artist", song.artist);
+        songData.put("album", song.album);
+        songData.put("genre", song.genre);
+        songData.put("duration", song.metadata.durationMs);
+
+        songData.put("url", "http://10.0.2.2:" + HTTP_PORT + "/songs/" + song.fileName);
+
+        songData.put("likes", likes);
+        songData.put("views", views);
+        songData.put("listeners", songListeners.estimate(song.id));
+        return songData;
+    }
+
+    // One page of the explore listing: pageSize songs (default 50) after cursor, ordered
+    // by sort (title, likes or views; default title).
+    private static String explorePage(ExploreCache.Snapshot snapshot, Request request) {
+        ExploreIndex.Sort sort;
+        try {
+            sort = parseSort(request.getSort());
+        } catch (IllegalArgumentException e) {
+            return "Invalid sort";
+        }
+        int size = request.getPageSize() == null ? EXPLORE_DEFAULT_PAGE : request.getPageSize();
+        if (size <= 0) return "Invalid page size";
+        try {
+            return snapshot.index.page(sort, request.getCursor(), Math.min(size, EXPLORE_MAX_PAGE), snapshot.version);
+        } catch (IllegalArgumentException e) {
+            return "Invalid cursor";
+        }
+    }
+
+    private static ExploreIndex.Sort parseSort(String sort) {
+        return sort == null ? ExploreIndex.Sort.TITLE : ExploreIndex.Sort.valueOf(sort.toUpperCase());
+    }
+
     private static void startWebSocketServer() {
         WebSocketServer wsServer = new WebSocketServer(new InetSocketAddress(WEBSOCKET_PORT)) {
             @Override
@@ -609,39 +959,27 @@ public class SimpleServer {
             public void onMessage(WebSocket conn, String message) {
                 try {
                     Request request = gson.fromJson(message, Request.class);
-                    String response;
 
                     if ("get_explore_songs".equals(request.getAction())) {
-                        File folder = new File(SONGS_FOLDER);
-                        File[] files = folder.listFiles((dir, name) -> name.toLowerCase().endsWith(".mp3"));
-
-                        List<Map<String, Object>> songs = new ArrayList<>();
-
-                        if (files != null) {
-                            for (File file : files) {
-                                String fileName = file.getName();
-                                String id = fileName.replace(".mp3", "");
-                                String title = id.replace("_", " ");
-
-                                Map<String, Object> songData = new HashMap<>();
-                                songData.put("id", id);
-                                songData.put("title", Character.toUpperCase(title.charAt(0)) + title.substring(1));
-                                songData.put("genre", "Unknown");
-
-                                songData.put("url", "http://10.0.2.2:" + HTTP_PORT + "/songs/" + fileName);
-
-                                songData.put("likes", songLikes.getOrDefault(id, 0));
-                                songData.put("views", songViews.getOrDefault(id, 0));
-
-                                songs.add(songData);
-                            }
+                        // clients that send a version (0 if they have none) get a versioned
+                        // reply, or just "not modified" if their copy is current
+                        ExploreCache.Snapshot snapshot = exploreCache.get();
+                        if (request.getPageSize() != null || request.getCursor() != null || request.getSort() != null) {
+                            conn.send(explorePage(snapshot, request));
+                            return;
                         }
-                        response = gson.toJson(songs);
+                        TextFrame frame = new TextFrame();
+                        if (request.getVersion() == null) {
+                            frame.setPayload(snapshot.songs());
+                        } else if (request.getVersion() == snapshot.version) {
+                            frame.setPayload(snapshot.notModified());
+                        } else {
+                            frame.setPayload(snapshot.versioned());
+                        }
+                        conn.sendFrame(frame);
                     } else {
-                        response = "Invalid action";
+                        conn.send("Invalid action");
                     }
-
-                    conn.send(response);
                 } catch (Exception e) {
                     System.out.println("WebSocket message handling error: " + e.getMessage());
                 }
@@ -664,6 +1002,10 @@ public class SimpleServer {
     static class Request {
         private String action;
         private String payloadJson;
+        private Long version;
+        private Integer pageSize;
+        private String cursor;
+        private String sort;
 
         public String getAction() {
             return action;
@@ -672,9 +1014,219 @@ public class SimpleServer {
         public String getPayloadJson() {
             return payloadJson;
         }
+
+        public Long getVersion() {
+            return version;
+        }
+
+        public Integer getPageSize() {
+            return pageSize;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+
+        public String getSort() {
+            return sort;
+        }
+    }
+
+    // Payloads that act on one user's profile.
+    interface UserScoped {
+        String getUsername();
+    }
+
+    static class BatchRequest {
+        private List<BatchItem> requests;
+
+        public List<BatchItem> getRequests() {
+            return requests;
+        }
+    }
+
+    static class BatchItem {
+        private String action;
+        private JsonElement payload;
+
+        public String getAction() {
+            return action;
+        }
+
+        public JsonElement getPayload() {
+            return payload;
+        }
+    }
+
+    static class SearchRequest {
+        private String query;
+        private Integer limit;
+
+        public String getQuery() {
+            return query;
+        }
+
+        public Integer getLimit() {
+            return limit;
+        }
+    }
+
+    // Either the song id alone (older clients) or {"songId": ..., "username": ...}.
+    @JsonAdapter(ViewRequest.Adapter.class)
+    static class ViewRequest {
+        private String songId;
+        private String username;
+
+        public String getSongId() {
+            return songId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        static class Adapter extends TypeAdapter<ViewRequest> {
+            @Override
+            public ViewRequest read(JsonReader in) throws IOException {
+                ViewRequest request = new ViewRequest();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    return null;
+                }
+                if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                    request.songId = in.nextString();
+                    return request;
+                }
+                in.beginObject();
+                while (in.hasNext()) {
+                    String name = in.nextName();
+                    if (in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                    } else if ("songId".equals(name)) {
+                        request.songId = in.nextString();
+                    } else if ("username".equals(name)) {
+                        request.username = in.nextString();
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+                return request;
+            }
+
+            @Override
+            public void write(JsonWriter out, ViewRequest request) throws IOException {
+                out.beginObject().name("songId").value(request.songId).name("username").value(request.username).endObject();
+            }
+        }
+    }
+
+    static class TopSongsRequest {
+        private String by;
+        private Integer limit;
+
+        public String getBy() {
+            return by;
+        }
+
+        public Integer getLimit() {
+            return limit;
+        }
+    }
+
+    static class TrendingRequest {
+        private String window;
+        private Integer limit;
+
+        public String getWindow() {
+            return window;
+        }
+
+        public Integer getLimit() {
+            return limit;
+        }
+    }
+
+    static class GenreRequest {
+        private String genre;
+        private String artist;
+        private String sort;
+        private Integer pageSize;
+        private String cursor;
+
+        public String getGenre() {
+            return genre;
+        }
+
+        public String getArtist() {
+            return artist;
+        }
+
+        public String getSort() {
+            return sort;
+        }
+
+        public Integer getPageSize() {
+            return pageSize;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+    }
+
+    static class PlaylistRequest implements UserScoped {
+        private String username;
+        private String playlistId;
+        private String playlistName;
+        private String songId;
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPlaylistId() {
+            return playlistId;
+        }
+
+        public String getPlaylistName() {
+            return playlistName;
+        }
+
+        public String getSongId() {
+            return songId;
+        }
+    }
+
+    static class ProfileRequest implements UserScoped {
+        private String username;
+        private String email;
+        private String password;
+        private String theme;
+        private String profileImage;
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getTheme() {
+            return theme;
+        }
+
+        public String getProfileImage() {
+            return profileImage;
+        }
     }
 
-    static class LoginRequest {
+    static class LoginRequest implements UserScoped {
         private String username;
         private String password;
 
@@ -0,0 +1,173 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// In-memory index of the MP3s in the songs folder and their tags. Built with one directory
+// scan at startup and then kept current from WatchService events, so readers never touch
+// the file system. songs() returns an immutable snapshot that is only rebuilt on changes.
+// Events are debounced per file (catalog.debounceMillis) and handled on an update thread,
+// so a file being copied in is parsed and hashed once it has gone quiet, not once per
+// modify event, and the watcher thread itself never reads a file.
+class SongCatalog {
+
+    private static final long DEBOUNCE_MS = Long.getLong("catalog.debounceMillis", 500);
+
+    static final class Song {
+        final String id;
+        final String title;
+        final String artist;
+        final String album;
+        final String genre;
+        final String fileName;
+        final File file;
+        final long length;
+        final long lastModified;
+        final SongMetadata metadata;
+
+        Song(File file, SongMetadata metadata) {
+            this.file = file;
+            this.fileName = file.getName();
+            this.id = fileName.replace(".mp3", "");
+            this.metadata = metadata;
+            if (metadata.title != null) {
+                this.title = metadata.title;
+            } else {
+                String title = id.replace("_", " ");
+                this.title = Character.toUpperCase(title.charAt(0)) + title.substring(1);
+            }
+            this.artist = metadata.artist;
+            this.album = metadata.album;
+            this.genre = metadata.genre == null ? "Unknown" : metadata.genre;
+            this.length = metadata.size;
+            this.lastModified = metadata.lastModified;
+        }
+    }
+
+    private final File folder;
+    private final SongMetadataStore metadata;
+    private final Map<String, Song> byFileName = new ConcurrentHashMap<>();
+    private volatile List<Song> songs = List.of();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    // the pending update per file name; a newer event for the file replaces it
+    private final Map<String, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService updater = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "song-catalog-update");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SongCatalog(File folder, SongMetadataStore metadata) {
+        this.folder = folder;
+        this.metadata = metadata;
+    }
+
+    void start() throws IOException {
+        folder.mkdirs();
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        // register before scanning so no file added in between is missed
+        folder.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        rescan();
+        System.out.println("Song catalog loaded: " + songs.size() + " songs in " + folder);
+
+        Thread thread = new Thread(() -> watch(watcher), "song-catalog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Called on the update thread after every change to the snapshot.
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    List<Song> songs() {
+        return songs;
+    }
+
+    Song get(String fileName) {
+        return byFileName.get(fileName);
+    }
+
+    private void watch(WatchService watcher) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    updater.execute(this::rescan);
+                    continue;
+                }
+                schedule(((Path) event.context()).toString());
+            }
+            if (!key.reset()) {
+                System.out.println("Song catalog: " + folder + " is no longer watched");
+                return;
+            }
+        }
+    }
+
+    private static boolean isSong(String fileName) {
+        return fileName.toLowerCase().endsWith(".mp3") && !fileName.replace(".mp3", "").isEmpty();
+    }
+
+    private void schedule(String fileName) {
+        if (!isSong(fileName)) return;
+        scheduled.compute(fileName, (name, previous) -> {
+            if (previous != null) previous.cancel(false);
+            return updater.schedule(() -> {
+                scheduled.remove(name);
+                if (update(name)) publish();
+            }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    // Re-reads one file once its events have settled; a file whose size and mtime still
+    // match its entry is left alone. One that is still being copied in is picked up again
+    // by the modify events that follow.
+    private boolean update(String fileName) {
+        File file = new File(folder, fileName);
+        if (file.isFile()) {
+            Song current = byFileName.get(fileName);
+            if (current != null && current.length == file.length() && current.lastModified == file.lastModified()) {
+                return false;
+            }
+            byFileName.put(fileName, new Song(file, metadata.get(file)));
+            return true;
+        }
+        metadata.remove(fileName);
+        return byFileName.remove(fileName) != null;
+    }
+
+    private void rescan() {
+        File[] files = folder.listFiles((dir, name) -> isSong(name));
+        if (files == null) files = new File[0];
+        metadata.index(files);
+        Set<String> present = new HashSet<>();
+        for (File file : files) {
+            present.add(file.getName());
+            byFileName.put(file.getName(), new Song(file, metadata.get(file)));
+        }
+        byFileName.keySet().retainAll(present);
+        publish();
+    }
+
+    private synchronized void publish() {
+        List<Song> sorted = new ArrayList<>(byFileName.values());
+        sorted.sort(Comparator.comparing(song -> song.fileName));
+        songs = Collections.unmodifiableList(sorted);
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Fixed-slot, memory-mapped like/view counters. Each song owns one slot holding its id
+// and two 64-bit counters, so an increment is an atomic add straight into the mapping
+// and opening the file needs no parsing beyond reading the ids back.
+//
+// Layout: a 64 byte header (magic, version, capacity, used slots) followed by
+// SLOT_SIZE byte slots of [u16 id length][id bytes][... padding][likes][views].
+class SongCounterStore implements AutoCloseable {
+
+    enum Counter {
+        LIKES(SLOT_SIZE - 16), VIEWS(SLOT_SIZE - 8);
+
+        private final int offset;
+
+        Counter(int offset) {
+            this.offset = offset;
+        }
+    }
+
+    private static final int MAGIC = 0x4D424354; // "MBCT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 256;
+    private static final int MAX_ID_BYTES = SLOT_SIZE - 16 - 2;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int USED_OFFSET = 12;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final File file;
+    private final FileChannel channel;
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
+
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int indexedSlots;
+
+    SongCounterStore(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock fileLock = channel.lock();
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                map(INITIAL_CAPACITY);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(CAPACITY_OFFSET, INITIAL_CAPACITY);
+                buffer.putInt(USED_OFFSET, 0);
+            } else {
+                map((int) ((channel.size() - HEADER_SIZE) / SLOT_SIZE));
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    throw new IOException(file + " is not a song counter file");
+                }
+            }
+        } finally {
+            fileLock.release();
+        }
+        indexNewSlots();
+    }
+
+    // Opens the counter file, importing the old song_data.json counters the first time.
+    static SongCounterStore open(File file, File legacyJson) throws IOException {
+        SongCounterStore store = new SongCounterStore(file);
+        if (store.isEmpty() && legacyJson.exists()) {
+            try (Reader reader = Files.newBufferedReader(legacyJson.toPath(), StandardCharsets.UTF_8)) {
+                Map<String, Map<String, Double>> data = new Gson().fromJson(reader,
+                        new TypeToken<Map<String, Map<String, Double>>>() {
+                        }.getType());
+                if (data != null) {
+                    data.getOrDefault("likes", Map.of()).forEach((k, v) -> store.set(k, Counter.LIKES, v.longValue()));
+                    data.getOrDefault("views", Map.of()).forEach((k, v) -> store.set(k, Counter.VIEWS, v.longValue()));
+                }
+            }
+            store.force();
+            System.out.println("Imported song counters from " + legacyJson + " into " + file);
+        }
+        return store;
+    }
+
+    boolean isEmpty() {
+        refresh();
+        return slots.isEmpty();
+    }
+
+    long get(String songId, Counter counter) {
+        refresh();
+        Integer slot = slots.get(songId);
+        if (slot == null) return 0;
+        mappingLock.readLock().lock();
+        try {
+            return (long) LONGS.getVolatile(buffer, slotOffset(slot) + counter.offset);
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    long add(String songId, Counter counter, long delta) {
+        int slot = slotFor(songId);
+        mappingLock.readLock().lock();
+        try {
+            return (long) LONGS.getAndAdd(buffer, slotOffset(slot) + counter.offset, delta) + delta;
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    void set(String songId, Counter counter, long value) {
+        int slot = slotFor(songId);
+        mappingLock.readLock().lock();
+        try {
+            LONGS.setVolatile(buffer, slotOffset(slot) + counter.offset, value);
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    Map<String, Long> snapshot(Counter counter) {
+        refresh();
+        Map<String, Long> out = new LinkedHashMap<>();
+        mappingLock.readLock().lock();
+        try {
+            for (Map.Entry<String, Integer> e : slots.entrySet()) {
+                out.put(e.getKey(), (long) LONGS.getVolatile(buffer, slotOffset(e.getValue()) + counter.offset));
+            }
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+        return out;
+    }
+
+    void force() {
+        mappingLock.readLock().lock();
+        try {
+            buffer.force();
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private int slotFor(String songId) {
+        Integer slot = slots.get(songId);
+        if (slot != null) return slot;
+        return allocate(songId);
+    }
+
+    // Slots are only ever appended. The file lock keeps AdminCLI and the server from
+    // handing out the same slot when both have the file open.
+    private synchronized int allocate(String songId) {
+        Integer existing = slots.get(songId);
+        if (existing != null) return existing;
+        byte[] id = songId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("song id too long for counter slot: " + songId);
+        }
+        try {
+            FileLock fileLock = channel.lock(0, HEADER_SIZE, false);
+            try {
+                indexNewSlots();
+                existing = slots.get(songId);
+                if (existing != null) return existing;
+
+                mappingLock.writeLock().lock();
+                try {
+                    int used = buffer.getInt(USED_OFFSET);
+                    int fileCapacity = buffer.getInt(CAPACITY_OFFSET);
+                    if (fileCapacity > capacity) map(fileCapacity);
+                    if (used == capacity) {
+                        map(capacity * 2);
+                        buffer.putInt(CAPACITY_OFFSET, capacity);
+                    }
+                    int offset = slotOffset(used);
+                    buffer.putShort(offset, (short) id.length);
+                    buffer.put(offset + 2, id);
+                    buffer.putInt(USED_OFFSET, used + 1);
+                    slots.put(songId, used);
+                    indexedSlots = used + 1;
+                    return used;
+                } finally {
+                    mappingLock.writeLock().unlock();
+                }
+            } finally {
+                fileLock.release();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot allocate counter slot in " + file, e);
+        }
+    }
+
+    // Picks up slots appended by another process sharing the file.
+    private void refresh() {
+        if (readUsed() != indexedSlots) {
+            synchronized (this) {
+                indexNewSlots();
+            }
+        }
+    }
+
+    private int readUsed() {
+        mappingLock.readLock().lock();
+        try {
+            return buffer.getInt(USED_OFFSET);
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    private void indexNewSlots() {
+        mappingLock.writeLock().lock();
+        try {
+            int fileCapacity = buffer.getInt(CAPACITY_OFFSET);
+            if (fileCapacity > capacity) map(fileCapacity);
+            int used = buffer.getInt(USED_OFFSET);
+            for (int slot = indexedSlots; slot < used; slot++) {
+                int offset = slotOffset(slot);
+                byte[] id = new byte[buffer.getShort(offset)];
+                buffer.get(offset + 2, id);
+                slots.put(new String(id, StandardCharsets.UTF_8), slot);
+            }
+            indexedSlots = used;
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot remap " + file, e);
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    private void map(int newCapacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hot-path like/view counting. Increments land in per-song LongAdders, which stripe
+// updates across cells so a trending song does not serialize every client thread on one
+// memory location. drain() moves the pending deltas into the mapped SongCounterStore and
+// re-ranks the drained songs in the likes and views leaderboards, so rankings trail the
+// live counts by at most one drain interval.
+class SongCounters {
+
+    // told about every delta moved by a drain, off the increment hot path
+    interface DrainListener {
+        void drained(String songId, SongCounterStore.Counter counter, long delta);
+    }
+
+    private static final class Cells {
+        final LongAdder likes = new LongAdder();
+        final LongAdder views = new LongAdder();
+
+        LongAdder of(SongCounterStore.Counter counter) {
+            return counter == SongCounterStore.Counter.LIKES ? likes : views;
+        }
+    }
+
+    private final SongCounterStore store;
+    private final Map<String, Cells> pending = new ConcurrentHashMap<>();
+    private final Leaderboard[] leaderboards = new Leaderboard[SongCounterStore.Counter.values().length];
+    private final List<DrainListener> listeners = new CopyOnWriteArrayList<>();
+
+    SongCounters(SongCounterStore store) {
+        this.store = store;
+        for (SongCounterStore.Counter counter : SongCounterStore.Counter.values()) {
+            leaderboards[counter.ordinal()] = new Leaderboard(store.snapshot(counter));
+        }
+    }
+
+    void addListener(DrainListener listener) {
+        listeners.add(listener);
+    }
+
+    Leaderboard leaderboard(SongCounterStore.Counter counter) {
+        return leaderboards[counter.ordinal()];
+    }
+
+    void increment(String songId, SongCounterStore.Counter counter) {
+        Cells cells = pending.get(songId);
+        if (cells == null) {
+            cells = pending.computeIfAbsent(songId, k -> new Cells());
+        }
+        cells.of(counter).increment();
+    }
+
+    long get(String songId, SongCounterStore.Counter counter) {
+        long value = store.get(songId, counter);
+        Cells cells = pending.get(songId);
+        return cells == null ? value : value + cells.of(counter).sum();
+    }
+
+    // Persisted values plus everything not drained yet, for listings and reports.
+    Map<String, Long> snapshot(SongCounterStore.Counter counter) {
+        Map<String, Long> out = store.snapshot(counter);
+        for (Map.Entry<String, Cells> e : pending.entrySet()) {
+            long delta = e.getValue().of(counter).sum();
+            if (delta != 0) out.merge(e.getKey(), delta, Long::sum);
+        }
+        return out;
+    }
+
+    // sumThenReset swaps each cell to zero atomically, so increments racing with a
+    // drain are either moved now or left for the next one, never lost. Cells stay in
+    // the map once created; there is one per song that has ever been played. A song the
+    // store cannot take (an id too long for a slot) loses its delta, but not the drain of
+    // every song after it.
+    void drain() {
+        for (Map.Entry<String, Cells> e : pending.entrySet()) {
+            for (SongCounterStore.Counter counter : SongCounterStore.Counter.values()) {
+                long delta = e.getValue().of(counter).sumThenReset();
+                if (delta == 0) continue;
+                try {
+                    leaderboard(counter).update(e.getKey(), store.add(e.getKey(), counter, delta));
+                } catch (RuntimeException ex) {
+                    System.out.println("Dropping " + delta + " " + counter + " of " + e.getKey() + ": " + ex.getMessage());
+                    continue;
+                }
+                for (DrainListener listener : listeners) listener.drained(e.getKey(), counter, delta);
+            }
+        }
+    }
+
+    void flush() {
+        drain();
+        store.force();
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+// Whole song files held in direct buffers, outside the Java heap, within a byte budget
+// and evicted least recently used first. A miss is still served from disk; the file is
+// loaded in the background if it is popular enough: at least minViews views, and more
+// views than every song it would push out, so one pass over a long tail of rarely played
+// files cannot flush the hits. An entry is dropped as soon as its file's size or mtime
+// changes. Direct memory of evicted entries is returned when their buffers are
+// collected, so the process can briefly hold more than the budget.
+class SongFileCache {
+
+    private static final class Entry {
+        final ByteBuffer bytes;
+        final long lastModified;
+
+        Entry(ByteBuffer bytes, long lastModified) {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final long budgetBytes;
+    private final long maxEntryBytes;
+    private final long minViews;
+    private final ToLongFunction<String> views;
+    // access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "song-cache-loader");
+        t.setDaemon(true);
+        return t;
+    });
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    // views maps a song file name to its view count
+    SongFileCache(long budgetBytes, long minViews, ToLongFunction<String> views) {
+        this.budgetBytes = budgetBytes;
+        this.maxEntryBytes = Math.min(budgetBytes / 4, Integer.MAX_VALUE);
+        this.minViews = minViews;
+        this.views = views;
+    }
+
+    // A read-only view of the file's bytes, or null (after maybe scheduling a load) when
+    // the file has to be read from disk.
+    ByteBuffer get(File file) {
+        String name = file.getName();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null) {
+                if (entry.bytes.capacity() == length && entry.lastModified == lastModified) {
+                    hits.increment();
+                    return entry.bytes.duplicate();
+                }
+                remove(name);
+            }
+        }
+        misses.increment();
+        if (length > 0 && length <= maxEntryBytes && !loading.contains(name) && admit(name, length)
+                && loading.add(name)) {
+            loader.execute(() -> load(file, name));
+        }
+        return null;
+    }
+
+    private boolean admit(String name, long length) {
+        long candidate = views.applyAsLong(name);
+        if (candidate < minViews) {
+            rejections.increment();
+            return false;
+        }
+        synchronized (this) {
+            long free = budgetBytes - usedBytes;
+            for (Map.Entry<String, Entry> victim : entries.entrySet()) {
+                if (free >= length) break;
+                if (views.applyAsLong(victim.getKey()) >= candidate) {
+                    rejections.increment();
+                    return false;
+                }
+                free += victim.getValue().bytes.capacity();
+            }
+        }
+        return true;
+    }
+
+    private void load(File file, String name) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long lastModified = file.lastModified();
+            long length = channel.size();
+            if (length > maxEntryBytes) return;
+            ByteBuffer bytes = ByteBuffer.allocateDirect((int) length);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes) < 0) break;
+            }
+            // a file still being written is left for a later request
+            if (bytes.hasRemaining() || file.lastModified() != lastModified || file.length() != length) return;
+            bytes.flip();
+            synchronized (this) {
+                remove(name);
+                Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+                while (usedBytes + length > budgetBytes && lru.hasNext()) {
+                    usedBytes -= lru.next().getValue().bytes.capacity();
+                    lru.remove();
+                    evictions.increment();
+                }
+                entries.put(name, new Entry(bytes.asReadOnlyBuffer(), lastModified));
+                usedBytes += length;
+            }
+            loads.increment();
+        } catch (IOException | OutOfMemoryError e) {
+            // direct memory exhausted or the file vanished: serving from disk still works
+            System.out.println("Could not cache " + file + ": " + e.getMessage());
+        } finally {
+            loading.remove(name);
+        }
+    }
+
+    private void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) usedBytes -= entry.bytes.capacity();
+    }
+
+    synchronized Map<String, Object> stats() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.sum());
+        stats.put("hitRatio", total == 0 ? 0 : Math.round(hitCount * 1000.0 / total) / 1000.0);
+        stats.put("entries", entries.size());
+        stats.put("usedMegabytes", usedBytes / (1024 * 1024));
+        stats.put("budgetMegabytes", budgetBytes / (1024 * 1024));
+        stats.put("loads", loads.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("rejections", rejections.sum());
+        return stats;
+    }
+}
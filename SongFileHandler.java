@@ -0,0 +1,248 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Serves GET /songs/<file> from the songs folder. Honors a single byte range
+// ("bytes=start-end", "bytes=start-" or the suffix form "bytes=-n") with 206 Partial
+// Content, so a seeking or resuming player only pulls the bytes it needs; a range that
+// starts past the end is answered 416. Multi-range and malformed Range headers are
+// ignored and get the whole file, as RFC 7233 allows.
+// The body is copied through buffers taken from a bounded pool and returned afterwards,
+// read with positional FileChannel reads, so serving a file allocates nothing per chunk
+// or per request. HttpServer only hands out an OutputStream, which rules out
+// FileChannel.transferTo to the socket; large reused buffers are the cheapest copy left.
+// 32 KB chunks are a second or two of 128-320 kbps audio, so a download costs few read
+// and write calls; much larger chunks gain little, because HttpServer copies each write
+// into a per-connection buffer that it regrows to twice the largest write.
+// With a SongFileCache, popular files are copied from their cached off-heap bytes
+// instead of being opened and read again.
+// Responses carry a strong ETag (the content hash kept in the song's catalog metadata),
+// Last-Modified and a configurable Cache-Control, so a player that plays a song again
+// revalidates with If-None-Match or If-Modified-Since and gets 304 Not Modified without
+// a body. If-Range keeps a resumed download from splicing two versions of a file. A file
+// that changed after the catalog last saw it is served without validators until the
+// catalog catches up.
+class SongFileHandler implements HttpHandler {
+
+    private static final int BUFFER_BYTES = Integer.getInteger("http.bufferKb", 32) * 1024;
+    // empty to leave the header out
+    private static final String CACHE_CONTROL = System.getProperty("http.cacheControl", "public, max-age=86400");
+    private static final long[] UNSATISFIABLE = new long[0];
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private final File folder;
+    private final SongCatalog catalog;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final SongFileCache cache;
+
+    // keeps up to pooledBuffers buffers, enough for one per concurrent download; catalog
+    // (the source of ETags) and cache may be null
+    SongFileHandler(File folder, SongCatalog catalog, int pooledBuffers, SongFileCache cache) {
+        this.folder = folder;
+        this.catalog = catalog;
+        this.buffers = new ArrayBlockingQueue<>(pooledBuffers);
+        this.cache = cache;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        String filename = path.replaceFirst("/songs/?", "");
+        if (filename.isEmpty()) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        File file = new File(folder, filename);
+        if (!file.exists() || !file.isFile()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        ByteBuffer cached = cache == null ? null : cache.get(file);
+        long length = cached != null ? cached.capacity() : file.length();
+        long lastModified = file.lastModified();
+        String etag = etag(filename, length, lastModified);
+        Headers request = exchange.getRequestHeaders();
+        Headers response = exchange.getResponseHeaders();
+        response.add("Accept-Ranges", "bytes");
+        if (etag != null) {
+            response.add("ETag", etag);
+            response.add("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+            if (!CACHE_CONTROL.isEmpty()) response.add("Cache-Control", CACHE_CONTROL);
+            if (notModified(request, etag, lastModified)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+        }
+
+        String rangeHeader = request.getFirst("Range");
+        String ifRange = request.getFirst("If-Range");
+        if (ifRange != null && (etag == null || !rangeStillValid(ifRange.trim(), etag, lastModified))) {
+            // the client holds part of another version: send all of this one
+            rangeHeader = null;
+        }
+        long[] range = parseRange(rangeHeader, length);
+        if (range == UNSATISFIABLE) {
+            response.add("Content-Range", "bytes */" + length);
+            exchange.sendResponseHeaders(416, -1);
+            return;
+        }
+
+        response.add("Content-Type", "audio/mpeg");
+        long start = 0;
+        long count = length;
+        if (range == null) {
+            exchange.sendResponseHeaders(200, length);
+        } else {
+            start = range[0];
+            count = range[1] - range[0] + 1;
+            response.add("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+            exchange.sendResponseHeaders(206, count);
+        }
+
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        try {
+            if (cached != null) {
+                sendCached(exchange, cached, start, count, buffer);
+            } else {
+                sendFile(exchange, file, start, count, buffer);
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    private static void sendCached(HttpExchange exchange, ByteBuffer cached, long start, long count, ByteBuffer buffer)
+            throws IOException {
+        cached.limit((int) (start + count)).position((int) start);
+        try (OutputStream os = exchange.getResponseBody()) {
+            while (cached.hasRemaining()) {
+                int n = Math.min(buffer.capacity(), cached.remaining());
+                cached.get(buffer.array(), 0, n);
+                os.write(buffer.array(), 0, n);
+            }
+        }
+    }
+
+    private static void sendFile(HttpExchange exchange, File file, long start, long count, ByteBuffer buffer)
+            throws IOException {
+        try (OutputStream os = exchange.getResponseBody();
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = readLimited(channel, buffer, position);
+                if (read < 0) break;
+                os.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+    }
+
+    // The quoted ETag of the file's current version, or null if the catalog has no hash for
+    // exactly this size and mtime.
+    private String etag(String filename, long length, long lastModified) {
+        if (catalog == null) return null;
+        SongCatalog.Song song = catalog.get(filename);
+        if (song == null || song.metadata.etag == null || song.length != length || song.lastModified != lastModified) {
+            return null;
+        }
+        return '"' + song.metadata.etag + '"';
+    }
+
+    // If-None-Match wins over If-Modified-Since when both are sent (RFC 7232 section 6).
+    private static boolean notModified(Headers request, String etag, long lastModified) {
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // weak comparison: W/"x" matches "x"
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag)) return true;
+            }
+            return false;
+        }
+        Long since = parseDate(request.getFirst("If-Modified-Since"));
+        return since != null && lastModified / 1000 <= since / 1000;
+    }
+
+    // If-Range needs a strong match: the exact ETag, or exactly the Last-Modified date.
+    private static boolean rangeStillValid(String ifRange, String etag, long lastModified) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(etag);
+        Long date = parseDate(ifRange);
+        return date != null && date / 1000 == lastModified / 1000;
+    }
+
+    private static Long parseDate(String value) {
+        if (value == null) return null;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    // {first, last} byte positions (inclusive), null to send the whole file, or
+    // UNSATISFIABLE.
+    static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=")) return null;
+        String spec = header.substring("bytes=".length()).trim();
+        if (spec.contains(",")) return null;
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        try {
+            if (first.isEmpty()) {
+                // the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix < 0) return null;
+                if (suffix == 0 || length == 0) return UNSATISFIABLE;
+                return new long[]{Math.max(0, length - suffix), length - 1};
+            }
+            long start = Long.parseLong(first);
+            if (start < 0) return null;
+            if (last.isEmpty()) return start >= length ? UNSATISFIABLE : new long[]{start, length - 1};
+            long end = Long.parseLong(last);
+            if (end < start) return null;
+            if (start >= length) return UNSATISFIABLE;
+            return new long[]{start, Math.min(end, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int readLimited(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        try {
+            return VirtualThreads.limitBlockingIo(() -> channel.read(buffer, position));
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Tag data of one MP3: ID3v2.2/2.3/2.4 text frames and the first attached picture, with
+// ID3v1 filling in whatever v2 did not have. The duration comes from TLEN, else from a
+// Xing/Info/VBRI header, else from the bitrate of the first MPEG frame (exact for CBR).
+// size and lastModified record which version of the file this was read from. Only tag
+// headers and frame headers are parsed; picture bytes are skipped by seeking. etag is a
+// hash of the whole file, the one full read, done here so it is cached with the tags and
+// computed again only when the file changes.
+class SongMetadata {
+
+    private static final int MAX_TEXT_FRAME = 4096;
+    private static final int MAX_PICTURE_HEADER = 512;
+    private static final int MAX_SYNC_SCAN = 64 * 1024;
+
+    private static final String[] GENRES = {
+            "Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop", "Jazz", "Metal",
+            "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock", "Techno", "Industrial",
+            "Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack", "Euro-Techno", "Ambient", "Trip-Hop", "Vocal", "Jazz+Funk",
+            "Fusion", "Trance", "Classical", "Instrumental", "Acid", "House", "Game", "Sound Clip", "Gospel", "Noise",
+            "Alternative Rock", "Bass", "Soul", "Punk", "Space", "Meditative", "Instrumental Pop", "Instrumental Rock", "Ethnic", "Gothic",
+            "Darkwave", "Techno-Industrial", "Electronic", "Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult", "Gangsta",
+            "Top 40", "Christian Rap", "Pop/Funk", "Jungle", "Native American", "Cabaret", "New Wave", "Psychedelic", "Rave", "Showtunes",
+            "Trailer", "Lo-Fi", "Tribal", "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll", "Hard Rock"
+    };
+
+    // kbps by [MPEG-1 ? 0 : 1][layer 1..3][index]
+    private static final int[][][] BITRATES = {
+            {{}, {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+                    {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}},
+            {{}, {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}}
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    long size;
+    long lastModified;
+    String title;
+    String artist;
+    String album;
+    String genre;
+    long durationMs;
+    // position and length of the first embedded picture in the file, -1 if there is none
+    long artOffset = -1;
+    int artLength;
+    String artMime;
+    // first 128 bits of the SHA-256 of the file's bytes, hex; null if it could not be read
+    String etag;
+
+    boolean isCurrent(File file) {
+        return size == file.length() && lastModified == file.lastModified();
+    }
+
+    static SongMetadata read(File file) throws IOException {
+        SongMetadata m = new SongMetadata();
+        m.size = file.length();
+        m.lastModified = file.lastModified();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long audioStart = m.readId3v2(in);
+            long audioEnd = m.readId3v1(in) ? in.length() - 128 : in.length();
+            if (m.durationMs == 0) m.durationMs = mpegDurationMs(in, audioStart, audioEnd);
+        }
+        m.etag = contentTag(file);
+        return m;
+    }
+
+    static String contentTag(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    // Returns where the audio starts, i.e. the first byte after the ID3v2 tag if any.
+    private long readId3v2(RandomAccessFile in) throws IOException {
+        if (in.length() < 10) return 0;
+        byte[] header = new byte[10];
+        in.seek(0);
+        in.readFully(header);
+        if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') return 0;
+        int major = header[3];
+        int flags = header[5] & 0xFF;
+        long end = 10 + syncsafe(header, 6);
+        long audioStart = end + ((flags & 0x10) != 0 ? 10 : 0);
+        if (major < 2 || major > 4) return audioStart;
+
+        long pos = 10;
+        if (major > 2 && (flags & 0x40) != 0) {
+            byte[] ext = new byte[4];
+            in.seek(pos);
+            in.readFully(ext);
+            // v2.3 does not count the size field itself, v2.4 does
+            pos += major == 3 ? 4 + readInt(ext, 0) : syncsafe(ext, 0);
+        }
+
+        int headerSize = major == 2 ? 6 : 10;
+        byte[] frame = new byte[headerSize];
+        end = Math.min(end, in.length());
+        while (pos + headerSize <= end) {
+            in.seek(pos);
+            in.readFully(frame);
+            if (frame[0] == 0) break; // padding
+            String id;
+            int size;
+            boolean skip = false;
+            if (major == 2) {
+                id = v22FrameId(new String(frame, 0, 3, StandardCharsets.ISO_8859_1));
+                size = (frame[3] & 0xFF) << 16 | (frame[4] & 0xFF) << 8 | frame[5] & 0xFF;
+            } else {
+                id = new String(frame, 0, 4, StandardCharsets.ISO_8859_1);
+                size = major == 4 ? syncsafe(frame, 4) : readInt(frame, 4);
+                int format = frame[9] & 0xFF;
+                // compressed or encrypted frames are left alone
+                skip = major == 3 ? (format & 0xC0) != 0 : (format & 0x0C) != 0;
+                if (major == 4 && (format & 0x01) != 0) {
+                    // data length indicator in front of the data
+                    pos += 4;
+                    size -= 4;
+                }
+            }
+            long dataStart = pos + headerSize;
+            if (size <= 0 || dataStart + size > end) break;
+            if (!skip) readFrame(in, id, dataStart, size, major);
+            pos = dataStart + size;
+        }
+        return audioStart;
+    }
+
+    private void readFrame(RandomAccessFile in, String id, long dataStart, int size, int major) throws IOException {
+        switch (id) {
+            case "TIT2":
+                if (title == null) title = readText(in, dataStart, size);
+                break;
+            case "TPE1":
+                if (artist == null) artist = readText(in, dataStart, size);
+                break;
+            case "TALB":
+                if (album == null) album = readText(in, dataStart, size);
+                break;
+            case "TCON":
+                if (genre == null) genre = genreName(readText(in, dataStart, size));
+                break;
+            case "TLEN": {
+                String text = readText(in, dataStart, size);
+                try {
+                    if (text != null) durationMs = Long.parseLong(text.trim());
+                } catch (NumberFormatException ignored) {
+                    // left to the MPEG header
+                }
+                break;
+            }
+            case "APIC":
+                if (artOffset < 0) readPicture(in, dataStart, size, major);
+                break;
+            default:
+        }
+    }
+
+    private static String v22FrameId(String id) {
+        switch (id) {
+            case "TT2":
+                return "TIT2";
+            case "TP1":
+                return "TPE1";
+            case "TAL":
+                return "TALB";
+            case "TCO":
+                return "TCON";
+            case "TLE":
+                return "TLEN";
+            case "PIC":
+                return "APIC";
+            default:
+                return id;
+        }
+    }
+
+    private static String readText(RandomAccessFile in, long dataStart, int size) throws IOException {
+        if (size < 2) return null;
+        byte[] data = new byte[Math.min(size, MAX_TEXT_FRAME)];
+        in.seek(dataStart);
+        in.readFully(data);
+        String text = new String(data, 1, data.length - 1, textCharset(data[0]));
+        // v2.4 separates multiple values with NUL; keep the first
+        int nul = text.indexOf('\0');
+        if (nul >= 0) text = text.substring(0, nul);
+        text = text.trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    // APIC: encoding, MIME type (v2.2 PIC: 3-char format), picture type, description, data.
+    private void readPicture(RandomAccessFile in, long dataStart, int size, int major) throws IOException {
+        byte[] data = new byte[Math.min(size, MAX_PICTURE_HEADER)];
+        in.seek(dataStart);
+        in.readFully(data);
+        int encoding = data[0];
+        int p = 1;
+        if (major == 2) {
+            if (data.length < 5) return;
+            artMime = "image/" + new String(data, 1, 3, StandardCharsets.ISO_8859_1).trim().toLowerCase();
+            p = 4;
+        } else {
+            int nul = indexOfNul(data, p, false);
+            if (nul < 0) return;
+            artMime = new String(data, p, nul - p, StandardCharsets.ISO_8859_1);
+            p = nul + 1;
+        }
+        p++; // picture type
+        boolean wide = encoding == 1 || encoding == 2;
+        int nul = indexOfNul(data, p, wide);
+        if (nul < 0) return;
+        p = nul + (wide ? 2 : 1);
+        if (p > size) return;
+        artOffset = dataStart + p;
+        artLength = size - p;
+    }
+
+    private static int indexOfNul(byte[] data, int from, boolean wide) {
+        for (int i = from; i < data.length - (wide ? 1 : 0); i += wide ? 2 : 1) {
+            if (data[i] == 0 && (!wide || data[i + 1] == 0)) return i;
+        }
+        return -1;
+    }
+
+    private boolean readId3v1(RandomAccessFile in) throws IOException {
+        if (in.length() < 128) return false;
+        byte[] tag = new byte[128];
+        in.seek(in.length() - 128);
+        in.readFully(tag);
+        if (tag[0] != 'T' || tag[1] != 'A' || tag[2] != 'G') return false;
+        if (title == null) title = v1Text(tag, 3);
+        if (artist == null) artist = v1Text(tag, 33);
+        if (album == null) album = v1Text(tag, 63);
+        int g = tag[127] & 0xFF;
+        if (genre == null && g < GENRES.length) genre = GENRES[g];
+        return true;
+    }
+
+    private static String v1Text(byte[] tag, int offset) {
+        int end = offset;
+        while (end < offset + 30 && tag[end] != 0) end++;
+        String text = new String(tag, offset, end - offset, StandardCharsets.ISO_8859_1).trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    // "(17)", "17", "(17)Rock" or plain text
+    private static String genreName(String text) {
+        if (text == null) return null;
+        String ref = text;
+        if (text.startsWith("(") && text.indexOf(')') > 1) {
+            String rest = text.substring(text.indexOf(')') + 1).trim();
+            if (!rest.isEmpty()) return rest;
+            ref = text.substring(1, text.indexOf(')'));
+        }
+        try {
+            int g = Integer.parseInt(ref);
+            return g >= 0 && g < GENRES.length ? GENRES[g] : text;
+        } catch (NumberFormatException e) {
+            return text;
+        }
+    }
+
+    private static long mpegDurationMs(RandomAccessFile in, long audioStart, long audioEnd) throws IOException {
+        byte[] buf = new byte[(int) Math.max(0, Math.min(MAX_SYNC_SCAN, audioEnd - audioStart))];
+        in.seek(audioStart);
+        in.readFully(buf);
+        for (int i = 0; i + 4 <= buf.length; i++) {
+            if ((buf[i] & 0xFF) != 0xFF || (buf[i + 1] & 0xE0) != 0xE0) continue;
+            int version = (buf[i + 1] >> 3) & 3;   // 3 = MPEG-1, 2 = MPEG-2, 0 = MPEG-2.5
+            int layer = 4 - ((buf[i + 1] >> 1) & 3); // 1..3, 4 = reserved
+            int bitrateIndex = (buf[i + 2] >> 4) & 0xF;
+            int rateIndex = (buf[i + 2] >> 2) & 3;
+            if (version == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) continue;
+
+            boolean mpeg1 = version == 3;
+            int sampleRate = SAMPLE_RATES[rateIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+            int samplesPerFrame = layer == 1 ? 384 : layer == 3 && !mpeg1 ? 576 : 1152;
+            boolean mono = ((buf[i + 3] >> 6) & 3) == 3;
+            int kbps = BITRATES[mpeg1 ? 0 : 1][layer][bitrateIndex];
+
+            // a real frame is followed by another sync word; random bytes rarely are
+            int padding = (buf[i + 2] >> 1) & 1;
+            int frameLength = layer == 1 ? (12 * kbps * 1000 / sampleRate + padding) * 4
+                    : (layer == 3 && !mpeg1 ? 72 : 144) * kbps * 1000 / sampleRate + padding;
+            int next = i + frameLength;
+            if (next + 2 <= buf.length && ((buf[next] & 0xFF) != 0xFF || (buf[next + 1] & 0xE0) != 0xE0)) continue;
+
+            long frames = vbrFrameCount(buf, i, layer == 3 ? (mpeg1 ? (mono ? 21 : 36) : (mono ? 13 : 21)) : -1);
+            if (frames > 0) return frames * samplesPerFrame * 1000 / sampleRate;
+            return (audioEnd - audioStart - i) * 8 / kbps;
+        }
+        return 0;
+    }
+
+    // Frame count from a Xing/Info header (at xingOffset) or a VBRI header (at 36), else 0.
+    private static long vbrFrameCount(byte[] buf, int frame, int xingOffset) {
+        int x = frame + xingOffset;
+        if (xingOffset > 0 && x + 12 <= buf.length) {
+            String tag = new String(buf, x, 4, StandardCharsets.ISO_8859_1);
+            if ((tag.equals("Xing") || tag.equals("Info")) && (readInt(buf, x + 4) & 1) != 0) {
+                return readInt(buf, x + 8) & 0xFFFFFFFFL;
+            }
+        }
+        int v = frame + 36;
+        if (v + 18 <= buf.length && new String(buf, v, 4, StandardCharsets.ISO_8859_1).equals("VBRI")) {
+            return readInt(buf, v + 14) & 0xFFFFFFFFL;
+        }
+        return 0;
+    }
+
+    private static Charset textCharset(byte encoding) {
+        switch (encoding) {
+            case 1:
+                return StandardCharsets.UTF_16;
+            case 2:
+                return StandardCharsets.UTF_16BE;
+            case 3:
+                return StandardCharsets.UTF_8;
+            default:
+                return StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    private static int syncsafe(byte[] b, int off) {
+        return (b[off] & 0x7F) << 21 | (b[off + 1] & 0x7F) << 14 | (b[off + 2] & 0x7F) << 7 | b[off + 3] & 0x7F;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | b[off + 3] & 0xFF;
+    }
+}
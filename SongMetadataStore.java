@@ -0,0 +1,123 @@
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+// SongMetadata for every song file, kept in a JSON cache on disk keyed by file name. An
+// entry is reused as long as the file's size and mtime match, so a restart only parses
+// files that were added or changed, and a file's content hash (its HTTP ETag) is taken
+// once per version of the file. The startup pass parses on a ForkJoinPool; changes
+// seen later by the catalog watcher are parsed one at a time and written back lazily.
+class SongMetadataStore {
+
+    private static final int PARALLELISM = Integer.getInteger("metadata.parallelism", Runtime.getRuntime().availableProcessors());
+    private static final Type CACHE_TYPE = new TypeToken<Map<String, SongMetadata>>() {
+    }.getType();
+
+    private final File cacheFile;
+    private final Gson gson = new Gson();
+    private final Map<String, SongMetadata> cache = new ConcurrentHashMap<>();
+    private final WriteBehindFlusher flusher;
+
+    SongMetadataStore(File cacheFile) {
+        this.cacheFile = cacheFile;
+        this.flusher = new WriteBehindFlusher("song-metadata", this::save, 5000, 100);
+    }
+
+    void load() {
+        if (cacheFile.exists()) {
+            try (Reader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+                Map<String, SongMetadata> loaded = gson.fromJson(reader, CACHE_TYPE);
+                if (loaded != null) cache.putAll(loaded);
+            } catch (Exception e) {
+                // only a cache; everything is parsed again
+                System.out.println("Ignoring unreadable metadata cache " + cacheFile + ": " + e.getMessage());
+            }
+        }
+        flusher.start();
+    }
+
+    // Brings the cache in line with the full list of song files, parsing the missing and
+    // stale ones in parallel and dropping entries for files that are gone.
+    void index(File[] files) {
+        long start = System.currentTimeMillis();
+        List<File> stale = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        for (File file : files) {
+            present.add(file.getName());
+            SongMetadata cached = cache.get(file.getName());
+            // entries without an etag were written before it existed
+            if (cached == null || !cached.isCurrent(file) || cached.etag == null) stale.add(file);
+        }
+        boolean removed = cache.keySet().retainAll(present);
+
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try {
+            pool.submit(() -> stale.parallelStream().forEach(this::parse)).join();
+        } finally {
+            pool.shutdown();
+        }
+        if (removed || !stale.isEmpty()) {
+            try {
+                save();
+            } catch (UncheckedIOException e) {
+                System.out.println("Error saving metadata cache: " + e.getMessage());
+            }
+        }
+        System.out.println("Song metadata: " + (files.length - stale.size()) + " cached, " + stale.size()
+                + " parsed in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Metadata for one file, parsing it if the cached entry is missing or stale.
+    SongMetadata get(File file) {
+        SongMetadata cached = cache.get(file.getName());
+        if (cached != null && cached.isCurrent(file)) return cached;
+        SongMetadata parsed = parse(file);
+        flusher.recordChange();
+        return parsed;
+    }
+
+    void remove(String fileName) {
+        if (cache.remove(fileName) != null) flusher.recordChange();
+    }
+
+    private SongMetadata parse(File file) {
+        SongMetadata metadata;
+        try {
+            metadata = SongMetadata.read(file);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read tags of " + file + ": " + e.getMessage());
+            metadata = new SongMetadata();
+            metadata.size = file.length();
+            metadata.lastModified = file.lastModified();
+            try {
+                metadata.etag = SongMetadata.contentTag(file);
+            } catch (IOException ignored) {
+                // served without validators
+            }
+        }
+        cache.put(file.getName(), metadata);
+        return metadata;
+    }
+
+    private synchronized void save() {
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            gson.toJson(new TreeMap<>(cache), writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// TCP actions by name, each with the class its payload decodes into. decode() walks the
+// request envelope once with a streaming JsonReader and, as soon as it knows the action,
+// reads the payload straight into that class:
+//   {"action": "...", "requestId": "...", "payload": {...}}          (single pass)
+//   {"action": "...", "payloadJson": "<json text>"}                   (older clients)
+// For payloadJson the inner text is still parsed once, but directly into the payload
+// class rather than into a Map first. A String payload may also be sent unquoted, as
+// the app does for delete_account.
+class TcpActionRegistry {
+
+    interface Handler<P> {
+        List<String> handle(P payload) throws Exception;
+    }
+
+    private static final class Action<P> {
+        final Class<P> payloadType;
+        final TypeAdapter<P> adapter;
+        final Handler<P> handler;
+
+        Action(Class<P> payloadType, TypeAdapter<P> adapter, Handler<P> handler) {
+            this.payloadType = payloadType;
+            this.adapter = adapter;
+            this.handler = handler;
+        }
+    }
+
+    static final class Call {
+        private final String action;
+        private final String requestId;
+        private final Action<?> target;
+        private final Object payload;
+
+        private Call(String action, String requestId, Action<?> target, Object payload) {
+            this.action = action;
+            this.requestId = requestId;
+            this.target = target;
+            this.payload = payload;
+        }
+
+        String getAction() {
+            return action;
+        }
+
+        String getRequestId() {
+            return requestId;
+        }
+
+        Object getPayload() {
+            return payload;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<String> run() throws Exception {
+            if (target == null) return List.of("Invalid action");
+            return ((Action<Object>) target).handler.handle(payload);
+        }
+    }
+
+    private final Gson gson;
+    private final Map<String, Action<?>> actions = new HashMap<>();
+
+    TcpActionRegistry(Gson gson) {
+        this.gson = gson;
+    }
+
+    <P> void register(String name, Class<P> payloadType, Handler<P> handler) {
+        actions.put(name, new Action<>(payloadType, gson.getAdapter(payloadType), handler));
+    }
+
+    Call decode(String line) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(line));
+        reader.setLenient(true);
+
+        String action = null;
+        String requestId = null;
+        Object payload = null;
+        // payload fields that arrived before "action", decoded once the action is known
+        JsonElement earlyPayload = null;
+        String earlyPayloadJson = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "action":
+                    action = nextNullableString(reader);
+                    break;
+                case "requestId":
+                    requestId = nextNullableString(reader);
+                    break;
+                case "payload": {
+                    Action<?> target = action == null ? null : actions.get(action);
+                    if (target != null) {
+                        payload = target.adapter.read(reader);
+                    } else if (action == null) {
+                        earlyPayload = JsonParser.parseReader(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                }
+                case "payloadJson": {
+                    String raw = nextNullableString(reader);
+                    Action<?> target = action == null ? null : actions.get(action);
+                    if (target != null) {
+                        payload = decodePayloadJson(target, raw);
+                    } else if (action == null) {
+                        earlyPayloadJson = raw;
+                    }
+                    break;
+                }
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        Action<?> target = action == null ? null : actions.get(action);
+        if (target != null && payload == null) {
+            if (earlyPayload != null) {
+                payload = gson.fromJson(earlyPayload, target.payloadType);
+            } else if (earlyPayloadJson != null) {
+                payload = decodePayloadJson(target, earlyPayloadJson);
+            }
+        }
+        return new Call(action, requestId, target, payload);
+    }
+
+    // For transports that decode the envelope themselves (binary frames).
+    Call call(String action, String requestId, JsonElement payload) {
+        Action<?> target = action == null ? null : actions.get(action);
+        Object decoded = target == null || payload == null ? null : gson.fromJson(payload, target.payloadType);
+        return new Call(action, requestId, target, decoded);
+    }
+
+    private Object decodePayloadJson(Action<?> target, String raw) {
+        if (raw == null) return null;
+        if (target.payloadType == String.class && !raw.startsWith("\"")) return raw;
+        return gson.fromJson(raw, target.payloadType);
+    }
+
+    private static String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Compares the thread-per-connection TCP model on platform threads vs virtual threads.
+// A local line-protocol server answers each request after a short sleep (standing in for
+// the profile log / file I/O of SimpleServer); most connections stay idle while a fixed
+// set of clients drive request/response traffic.
+//
+// Usage: java ThreadModeBenchmark [connections...]   (default: 1000 10000)
+// Options: -Dbench.activeClients=64 -Dbench.requests=200 -Dbench.ioMillis=1
+// 10k connections needs a file-descriptor limit above 20k (ulimit -n).
+public class ThreadModeBenchmark {
+
+    private static final int ACTIVE_CLIENTS = Integer.getInteger("bench.activeClients", 64);
+    private static final int REQUESTS = Integer.getInteger("bench.requests", 200);
+    private static final int IO_MILLIS = Integer.getInteger("bench.ioMillis", 1);
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length == 0 ? new int[]{1000, 10000} : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        System.out.printf("%-9s %8s %10s %12s %9s %9s %12s %10s%n",
+                "mode", "conns", "setup ms", "req/s", "p50 us", "p99 us", "peak thr", "heap MB");
+        for (int connections : sizes) {
+            run("platform", connections, null);
+            if (VirtualThreads.isSupported()) {
+                run("virtual", connections, VirtualThreads.newPerTaskExecutor("benchmark"));
+            } else {
+                System.out.printf("%-9s %8d   skipped (virtual threads need JDK 21+)%n", "virtual", connections);
+            }
+        }
+    }
+
+    private static void run(String mode, int connections, ExecutorService virtual) throws Exception {
+        System.gc();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        ServerSocket server = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+        List<Socket> accepted = Collections.synchronizedList(new ArrayList<>());
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    accepted.add(socket);
+                    if (virtual != null) {
+                        virtual.execute(() -> serve(socket));
+                    } else {
+                        new Thread(() -> serve(socket)).start();
+                    }
+                }
+            } catch (IOException ignored) {
+                // server closed
+            }
+        });
+        acceptor.start();
+
+        List<Socket> clients = new ArrayList<>();
+        long setupStart = System.nanoTime();
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients.add(new Socket(server.getInetAddress(), server.getLocalPort()));
+            }
+        } catch (Throwable e) {
+            System.out.printf("%-9s %8d   failed after %d connections: %s%n", mode, connections, clients.size(), e);
+            close(server, clients, accepted, virtual);
+            return;
+        }
+        long setupMs = (System.nanoTime() - setupStart) / 1_000_000;
+
+        int active = Math.min(ACTIVE_CLIENTS, connections);
+        ExecutorService drivers = Executors.newFixedThreadPool(active);
+        long[] latencies = new long[active * REQUESTS];
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        List<Future<?>> done = new ArrayList<>();
+        for (int c = 0; c < active; c++) {
+            Socket socket = clients.get(c);
+            done.add(drivers.submit(() -> {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                OutputStream out = socket.getOutputStream();
+                byte[] request = "{\"action\":\"increment_view\",\"payloadJson\":\"song\"}\n".getBytes(StandardCharsets.UTF_8);
+                for (int r = 0; r < REQUESTS; r++) {
+                    long t0 = System.nanoTime();
+                    out.write(request);
+                    out.flush();
+                    in.readLine();
+                    latencies[next.getAndIncrement()] = System.nanoTime() - t0;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done) f.get();
+        long elapsed = System.nanoTime() - start;
+        drivers.shutdown();
+
+        Arrays.sort(latencies);
+        long heapMb = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024 * 1024);
+        System.out.printf("%-9s %8d %10d %12.0f %9d %9d %12d %10d%n", mode, connections, setupMs,
+                latencies.length / (elapsed / 1e9),
+                latencies[latencies.length / 2] / 1000, latencies[(int) (latencies.length * 0.99)] / 1000,
+                threads.getPeakThreadCount(), heapMb);
+        close(server, clients, accepted, virtual);
+    }
+
+    private static void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            while (in.readLine() != null) {
+                if (IO_MILLIS > 0) Thread.sleep(IO_MILLIS);
+                out.write("success\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // client went away
+        }
+    }
+
+    private static void close(ServerSocket server, List<Socket> clients, List<Socket> accepted, ExecutorService virtual) throws IOException {
+        server.close();
+        for (Socket s : clients) s.close();
+        synchronized (accepted) {
+            for (Socket s : accepted) s.close();
+        }
+        if (virtual != null) virtual.shutdown();
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Predicate;
+
+// Recent listening per song. Events land in a ring of fixed-width time buckets covering
+// one week, each bucket holding only the songs played in it. Every song keeps running
+// totals for the last hour, day and week: an event adds to all three, and when the ring
+// advances, the bucket sliding out of a window is subtracted from that window, so a
+// total is never recomputed from history.
+// Next to the windows each song has an exponentially decayed score kept as a forward
+// decay: an event at time t adds weight * 2^((t - landmark) / halfLife). Scores stored
+// that way rank the same as if all of them had been decayed to now, so nothing has to
+// be touched as time passes; the landmark moves forward when the exponent gets large.
+//
+// File layout: magic, version, bucket millis, current bucket, landmark, song count,
+// then per song [id][decayed score], then per non-empty bucket
+// [bucket number][entry count] and [song index][events] per entry.
+class TrendingEngine {
+
+    enum Window {
+        HOUR(3600_000L), DAY(86400_000L), WEEK(7 * 86400_000L), DECAYED(0);
+
+        final long millis;
+
+        Window(long millis) {
+            this.millis = millis;
+        }
+    }
+
+    private static final int MAGIC = 0x4D42544E; // "MBTN"
+    private static final int VERSION = 1;
+    private static final long BUCKET_MILLIS = Long.getLong("trending.bucketMinutes", 10) * 60_000L;
+    private static final long HALF_LIFE_MILLIS = Long.getLong("trending.halfLifeHours", 6) * 3600_000L;
+    private static final int LIKE_WEIGHT = 3;
+    private static final int VIEW_WEIGHT = 1;
+    // rebase before 2^exponent gets anywhere near the range of a double
+    private static final double MAX_EXPONENT = 64;
+
+    private static final class Trend {
+        final long[] totals = new long[3];
+        double score;
+    }
+
+    private final File file;
+    private final int[] windowBuckets = new int[3];
+    private final Map<String, Long>[] ring;
+    private final Map<String, Trend> trends = new HashMap<>();
+    private long currentBucket;
+    private long landmark;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TrendingEngine(File file) {
+        this.file = file;
+        for (int w = 0; w < windowBuckets.length; w++) {
+            windowBuckets[w] = (int) Math.max(1, Window.values()[w].millis / BUCKET_MILLIS);
+        }
+        ring = new Map[windowBuckets[Window.WEEK.ordinal()]];
+        for (int i = 0; i < ring.length; i++) ring[i] = new HashMap<>();
+        long now = System.currentTimeMillis();
+        currentBucket = now / BUCKET_MILLIS;
+        landmark = now;
+    }
+
+    synchronized void record(String songId, SongCounterStore.Counter counter, long events) {
+        long now = System.currentTimeMillis();
+        advance(now);
+        Trend trend = trends.computeIfAbsent(songId, k -> new Trend());
+        for (int w = 0; w < trend.totals.length; w++) trend.totals[w] += events;
+        ring[slot(currentBucket)].merge(songId, events, Long::sum);
+
+        double exponent = (double) (now - landmark) / HALF_LIFE_MILLIS;
+        if (exponent > MAX_EXPONENT) {
+            rebase(now);
+            exponent = 0;
+        }
+        int weight = counter == SongCounterStore.Counter.LIKES ? LIKE_WEIGHT : VIEW_WEIGHT;
+        trend.score += weight * events * Math.pow(2, exponent);
+    }
+
+    // The first limit songs accepted by include, ranked by their event count in window or,
+    // for DECAYED, by their score decayed to now; song id -> that value.
+    synchronized LinkedHashMap<String, Double> top(Window window, int limit, Predicate<String> include) {
+        long now = System.currentTimeMillis();
+        advance(now);
+        double decay = Math.pow(2, -(double) (now - landmark) / HALF_LIFE_MILLIS);
+        PriorityQueue<Map.Entry<String, Double>> top = new PriorityQueue<>(
+                Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry::getKey, Comparator.reverseOrder()));
+        for (Map.Entry<String, Trend> e : trends.entrySet()) {
+            Trend trend = e.getValue();
+            double value = window == Window.DECAYED ? trend.score * decay : trend.totals[window.ordinal()];
+            if (value <= 0 || !include.test(e.getKey())) continue;
+            top.add(new AbstractMap.SimpleEntry<>(e.getKey(), value));
+            if (top.size() > limit) top.poll();
+        }
+        List<Map.Entry<String, Double>> ranked = new ArrayList<>(top);
+        ranked.sort(Collections.reverseOrder(top.comparator()));
+        LinkedHashMap<String, Double> out = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> e : ranked) out.put(e.getKey(), e.getValue());
+        return out;
+    }
+
+    // Moves the ring up to now, expiring each passed bucket from the windows it leaves.
+    private void advance(long now) {
+        long target = now / BUCKET_MILLIS;
+        if (target - currentBucket > ring.length) {
+            // idle for longer than the ring: every window is empty
+            for (Map<String, Long> bucket : ring) bucket.clear();
+            trends.clear();
+            currentBucket = target;
+            return;
+        }
+        while (currentBucket < target) {
+            currentBucket++;
+            for (int w = 0; w < windowBuckets.length; w++) {
+                for (Map.Entry<String, Long> e : ring[slot(currentBucket - windowBuckets[w])].entrySet()) {
+                    Trend trend = trends.get(e.getKey());
+                    trend.totals[w] -= e.getValue();
+                    // a song without events for a week has decayed to nothing
+                    if (w == Window.WEEK.ordinal() && trend.totals[w] == 0) trends.remove(e.getKey());
+                }
+            }
+            // the bucket that just left the week is the slot the new bucket reuses
+            ring[slot(currentBucket)].clear();
+        }
+    }
+
+    private void rebase(long now) {
+        double factor = Math.pow(2, -(double) (now - landmark) / HALF_LIFE_MILLIS);
+        for (Trend trend : trends.values()) trend.score *= factor;
+        landmark = now;
+    }
+
+    private int slot(long bucket) {
+        return (int) Math.floorMod(bucket, (long) ring.length);
+    }
+
+    synchronized void load() {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not a trending file");
+            if (in.readLong() != BUCKET_MILLIS) {
+                System.out.println("Trending bucket size changed, starting from empty trends");
+                return;
+            }
+            long savedBucket = in.readLong();
+            long savedLandmark = in.readLong();
+            String[] ids = new String[in.readInt()];
+            double[] scores = new double[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = in.readUTF();
+                scores[i] = in.readDouble();
+            }
+            Map<String, Trend> loaded = new HashMap<>();
+            List<Map<String, Long>> buckets = new ArrayList<>();
+            List<Long> numbers = new ArrayList<>();
+            for (int b = in.readInt(); b > 0; b--) {
+                long number = in.readLong();
+                Map<String, Long> bucket = new HashMap<>();
+                for (int n = in.readInt(); n > 0; n--) {
+                    bucket.put(ids[in.readInt()], (long) in.readInt());
+                }
+                numbers.add(number);
+                buckets.add(bucket);
+            }
+
+            currentBucket = savedBucket;
+            landmark = savedLandmark;
+            for (Map<String, Long> bucket : ring) bucket.clear();
+            for (int i = 0; i < ids.length; i++) loaded.computeIfAbsent(ids[i], k -> new Trend()).score = scores[i];
+            for (int i = 0; i < buckets.size(); i++) {
+                long age = savedBucket - numbers.get(i);
+                ring[slot(numbers.get(i))].putAll(buckets.get(i));
+                for (Map.Entry<String, Long> e : buckets.get(i).entrySet()) {
+                    Trend trend = loaded.get(e.getKey());
+                    for (int w = 0; w < windowBuckets.length; w++) {
+                        if (age < windowBuckets[w]) trend.totals[w] += e.getValue();
+                    }
+                }
+            }
+            loaded.values().removeIf(trend -> trend.totals[Window.WEEK.ordinal()] == 0);
+            trends.clear();
+            trends.putAll(loaded);
+            advance(System.currentTimeMillis());
+            System.out.println("Loaded trends for " + trends.size() + " songs.");
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable trending file " + file + ": " + e.getMessage());
+        }
+    }
+
+    void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        synchronized (this) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(BUCKET_MILLIS);
+                out.writeLong(currentBucket);
+                out.writeLong(landmark);
+                Map<String, Integer> index = new HashMap<>();
+                out.writeInt(trends.size());
+                for (Map.Entry<String, Trend> e : trends.entrySet()) {
+                    index.put(e.getKey(), index.size());
+                    out.writeUTF(e.getKey());
+                    out.writeDouble(e.getValue().score);
+                }
+                int nonEmpty = 0;
+                for (Map<String, Long> bucket : ring) if (!bucket.isEmpty()) nonEmpty++;
+                out.writeInt(nonEmpty);
+                for (int age = 0; age < ring.length; age++) {
+                    Map<String, Long> bucket = ring[slot(currentBucket - age)];
+                    if (bucket.isEmpty()) continue;
+                    out.writeLong(currentBucket - age);
+                    out.writeInt(bucket.size());
+                    for (Map.Entry<String, Long> e : bucket.entrySet()) {
+                        out.writeInt(index.get(e.getKey()));
+                        out.writeInt((int) Math.min(Integer.MAX_VALUE, e.getValue()));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
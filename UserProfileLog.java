@@ -0,0 +1,279 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// Append-only log of user profile mutations. Every entry is one JSON line that sets
+// state (put / update / remove), so replaying an entry twice is harmless. The log is
+// fsynced in batches and periodically folded back into the JSON snapshot. While the log is
+// open the server holds a lock on <log>.lock, which tells AdminCLI not to delete the log
+// files under it.
+class UserProfileLog {
+
+    private static final long SYNC_INTERVAL_MS = Long.getLong("users.log.syncMillis", 200);
+    private static final int COMPACT_EVERY = Integer.getInteger("users.log.compactEvery", 10000);
+    private static final Type PROFILE_TYPE = new TypeToken<LinkedHashMap<String, Object>>() {
+    }.getType();
+    private static final Gson REPLAY_GSON = new Gson();
+
+    private final File snapshotFile;
+    private final File logFile;
+    private final File rotatedLogFile;
+    private final File lockFile;
+    private final Supplier<Map<String, Map<String, Object>>> profiles;
+    private final Gson gson = new GsonBuilder().serializeNulls().create();
+    private final Gson snapshotGson;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "user-profile-log");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // a ReentrantLock rather than synchronized so virtual threads waiting here do not pin
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel channel;
+    private FileChannel lockChannel;
+    private FileLock processLock;
+    private boolean unsynced;
+    private int entriesSinceCompaction;
+    private boolean compacting;
+
+    UserProfileLog(File snapshotFile, File logFile, Gson snapshotGson, Supplier<Map<String, Map<String, Object>>> profiles) {
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFile;
+        this.rotatedLogFile = new File(logFile.getPath() + ".old");
+        this.lockFile = new File(logFile.getPath() + ".lock");
+        this.snapshotGson = snapshotGson;
+        this.profiles = profiles;
+    }
+
+    // Replays whatever is left in the log files (including one rotated by a compaction
+    // that did not finish) on top of a freshly loaded snapshot.
+    static int replay(File logFile, Map<String, Map<String, Object>> target) {
+        int applied = 0;
+        File rotated = new File(logFile.getPath() + ".old");
+        for (File f : new File[]{rotated, logFile}) {
+            if (!f.exists()) continue;
+            try (BufferedReader reader = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    try {
+                        apply(JsonParser.parseString(line).getAsJsonObject(), target);
+                        applied++;
+                    } catch (Exception e) {
+                        // a torn last line after a crash; everything before it is intact
+                        System.out.println("Skipping unreadable entry in " + f + ": " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return applied;
+    }
+
+    private static void apply(JsonObject entry, Map<String, Map<String, Object>> target) {
+        String op = entry.get("op").getAsString();
+        String user = entry.get("user").getAsString();
+        switch (op) {
+            case "put":
+                target.put(user, REPLAY_GSON.fromJson(entry.get("profile"), PROFILE_TYPE));
+                break;
+            case "update": {
+                Map<String, Object> fields = REPLAY_GSON.fromJson(entry.get("fields"), PROFILE_TYPE);
+                Map<String, Object> profile = target.get(user);
+                if (profile != null) profile.putAll(fields);
+                break;
+            }
+            case "remove":
+                target.remove(user);
+                break;
+            default:
+                System.out.println("Unknown log op: " + op);
+        }
+    }
+
+    void open() throws IOException {
+        lock.lock();
+        try {
+            lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            processLock = lockChannel.tryLock();
+            if (processLock == null) {
+                System.out.println("Warning: another process holds " + lockFile + "; two servers are sharing " + logFile);
+            }
+            channel = openLog();
+        } finally {
+            lock.unlock();
+        }
+        scheduler.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void put(String user, Map<String, Object> profile) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("op", "put");
+        entry.put("user", user);
+        entry.put("profile", profile);
+        append(entry);
+    }
+
+    void update(String user, Map<String, Object> fields) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("op", "update");
+        entry.put("user", user);
+        entry.put("fields", fields);
+        append(entry);
+    }
+
+    void remove(String user) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("op", "remove");
+        entry.put("user", user);
+        append(entry);
+    }
+
+    // Writers queue on the lock, where a waiting virtual thread parks without holding its
+    // carrier, so only one carrier at a time is ever blocked in the write.
+    private void append(Map<String, Object> entry) {
+        byte[] line = (gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(line);
+            while (buf.hasRemaining()) channel.write(buf);
+            unsynced = true;
+            if (++entriesSinceCompaction >= COMPACT_EVERY && !compacting && !scheduler.isShutdown()) {
+                compacting = true;
+                scheduler.execute(this::compact);
+            }
+        } catch (IOException e) {
+            System.out.println("Error appending to user profile log: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sync() {
+        lock.lock();
+        try {
+            if (!unsynced) return;
+            channel.force(false);
+            unsynced = false;
+        } catch (IOException e) {
+            System.out.println("Error syncing user profile log: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rotates the live log, writes a full snapshot next to the old one and swaps it in.
+    // Entries appended while the snapshot is written land in the new log and are replayed
+    // on top of it, which is safe because every entry is idempotent. However rotation
+    // ends, the live log is open again afterwards, recreated if it had gone missing.
+    void compact() {
+        try {
+            lock.lock();
+            try {
+                try {
+                    channel.force(false);
+                } finally {
+                    channel.close();
+                }
+                if (rotatedLogFile.exists()) {
+                    // a previous compaction never finished; keep its entries ahead of ours
+                    if (logFile.exists()) {
+                        Files.write(rotatedLogFile.toPath(), Files.readAllBytes(logFile.toPath()), StandardOpenOption.APPEND);
+                        Files.delete(logFile.toPath());
+                    }
+                } else if (logFile.exists()) {
+                    Files.move(logFile.toPath(), rotatedLogFile.toPath());
+                }
+            } finally {
+                try {
+                    channel = openLog();
+                } catch (IOException e) {
+                    System.out.println("Error reopening user profile log: " + e.getMessage());
+                }
+                unsynced = false;
+                entriesSinceCompaction = 0;
+                lock.unlock();
+            }
+            writeSnapshot();
+            Files.deleteIfExists(rotatedLogFile.toPath());
+            System.out.println("User profiles compacted to " + snapshotFile);
+        } catch (Exception e) {
+            System.out.println("Error compacting user profiles: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            lock.lock();
+            compacting = false;
+            lock.unlock();
+        }
+    }
+
+    private FileChannel openLog() throws IOException {
+        return FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void writeSnapshot() throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             Writer writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
+            snapshotGson.toJson(profiles.get(), writer);
+            writer.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Waits for a compaction already handed to the scheduler before running the final one,
+    // so two never rotate the log at once. If the wait is interrupted while one is still
+    // running, the final compaction is skipped; the log it leaves is replayed on start.
+    void close() {
+        scheduler.shutdown();
+        try {
+            while (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                System.out.println("Waiting for user profile compaction to finish...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean running;
+        lock.lock();
+        try {
+            running = compacting;
+            compacting = true;
+        } finally {
+            lock.unlock();
+        }
+        if (!running) compact();
+        lock.lock();
+        try {
+            channel.close();
+            // closing the channel releases the process lock
+            lockChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// User profiles shared by all client threads. Profiles (and the playlist lists inside
+// them) are still mutated in place, but only while holding the lock of the stripe the
+// username hashes to, so different users rarely contend and a snapshot copies every
+// profile in a consistent state.
+class UserProfileStore {
+
+    private static final int STRIPES = Integer.getInteger("users.lockStripes", 64);
+
+    private final Map<String, Map<String, Object>> profiles = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    UserProfileStore() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    ReentrantLock lockFor(String username) {
+        return locks[stripe(username)];
+    }
+
+    private int stripe(String username) {
+        return Math.floorMod(Objects.hashCode(username), locks.length);
+    }
+
+    // Runs action under the user's lock; the profile passed in is null for unknown users.
+    <T> T withProfile(String username, Function<Map<String, Object>, T> action) {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            return action.apply(username == null ? null : profiles.get(username));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs action holding the locks of all the given users (null allowed), each stripe taken
+    // once and in index order so concurrent callers cannot deadlock. withProfile calls made
+    // inside action re-enter those locks without contending.
+    void withUsers(Collection<String> usernames, Runnable action) {
+        int[] stripes = usernames.stream().mapToInt(this::stripe).distinct().sorted().toArray();
+        int locked = 0;
+        try {
+            for (int stripe : stripes) {
+                locks[stripe].lock();
+                locked++;
+            }
+            action.run();
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                locks[stripes[i]].unlock();
+            }
+        }
+    }
+
+    boolean contains(String username) {
+        return username != null && profiles.containsKey(username);
+    }
+
+    boolean putIfAbsent(String username, Map<String, Object> profile) {
+        return withProfile(username, existing -> existing == null && profiles.putIfAbsent(username, profile) == null);
+    }
+
+    Map<String, Object> remove(String username) {
+        return withProfile(username, existing -> existing == null ? null : profiles.remove(username));
+    }
+
+    void putAll(Map<String, Map<String, Object>> loaded) {
+        profiles.putAll(loaded);
+    }
+
+    boolean anyMatch(Predicate<Map<String, Object>> predicate) {
+        for (String username : profiles.keySet()) {
+            if (withProfile(username, p -> p != null && predicate.test(p))) return true;
+        }
+        return false;
+    }
+
+    // Deep copy of every profile, each taken under its user's lock, for serialization.
+    Map<String, Map<String, Object>> snapshot() {
+        Map<String, Map<String, Object>> copy = new LinkedHashMap<>();
+        for (String username : profiles.keySet()) {
+            Map<String, Object> profile = withProfile(username, p -> p == null ? null : copyMap(p));
+            if (profile != null) copy.put(username, profile);
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object deepCopy(Object value) {
+        if (value instanceof Map) return copyMap((Map<String, Object>) value);
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object item : (List<Object>) value) copy.add(deepCopy(item));
+            return copy;
+        }
+        return value;
+    }
+
+    private static Map<String, Object> copyMap(Map<String, Object> map) {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> e : map.entrySet()) copy.put(e.getKey(), deepCopy(e.getValue()));
+        return copy;
+    }
+}
@@ -0,0 +1,77 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// Virtual-thread executors, looked up reflectively so the server still compiles and runs
+// on JDKs older than 21 (where it falls back to a cached platform-thread pool).
+final class VirtualThreads {
+
+    // Upper bound on song file reads in flight at once on virtual threads. There is no pool
+    // size to cap them, and a virtual thread blocked in file I/O holds on to its carrier,
+    // so without this a burst of downloads could park every carrier in the kernel. Platform
+    // threads are already bounded by their pool and are not limited.
+    private static final Semaphore BLOCKING_IO = new Semaphore(Integer.getInteger("io.maxConcurrent", 64));
+
+    private static final Method NEW_PER_TASK_EXECUTOR = lookup();
+    private static final MethodHandle IS_VIRTUAL = lookupIsVirtual();
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle lookupIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) return false;
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    static boolean isSupported() {
+        return NEW_PER_TASK_EXECUTOR != null;
+    }
+
+    static ExecutorService newPerTaskExecutor(String fallbackName) {
+        if (NEW_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_PER_TASK_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads unavailable: " + e.getMessage());
+            }
+        } else {
+            System.out.println("Virtual threads need JDK 21+, using platform threads for " + fallbackName);
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    static <T> T limitBlockingIo(Callable<T> io) throws Exception {
+        if (!isVirtual(Thread.currentThread())) return io.call();
+        BLOCKING_IO.acquire();
+        try {
+            return io.call();
+        } finally {
+            BLOCKING_IO.release();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Coalesces many in-memory changes into one persistence call. A flush runs every
+// intervalMs while there is something dirty, or as soon as maxDirty changes pile up,
+// so at most maxDirty changes (or intervalMs worth of them) can be lost on a crash.
+class WriteBehindFlusher {
+
+    private final String name;
+    private final Runnable flush;
+    private final long intervalMs;
+    private final int maxDirty;
+
+    // a LongAdder so that counting changes does not become the contended hot spot itself
+    private final LongAdder dirty = new LongAdder();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler;
+
+    WriteBehindFlusher(String name, Runnable flush, long intervalMs, int maxDirty) {
+        this.name = name;
+        this.flush = flush;
+        this.intervalMs = intervalMs;
+        this.maxDirty = maxDirty;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::flushIfDirty, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+    }
+
+    void recordChange() {
+        dirty.increment();
+        if (!flushQueued.get() && dirty.sum() >= maxDirty && flushQueued.compareAndSet(false, true)
+                && !scheduler.isShutdown()) {
+            scheduler.execute(this::flushIfDirty);
+        }
+    }
+
+    private void flushIfDirty() {
+        flushQueued.set(false);
+        long pending = dirty.sumThenReset();
+        if (pending == 0) return;
+        try {
+            flush.run();
+        } catch (Exception e) {
+            // keep the changes counted so the next tick retries
+            dirty.add(pending);
+            System.out.println("Error flushing " + name + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    void shutdown() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushIfDirty();
+    }
+}
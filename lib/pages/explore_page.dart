@@ -8,8 +8,9 @@ import 'song_player_page.dart';
 
 class ExplorePage extends StatefulWidget {
   final String socketUrl;
+  final String username;
 
-  const ExplorePage({Key? key, required this.socketUrl}) : super(key: key);
+  const ExplorePage({Key? key, required this.socketUrl, required this.username}) : super(key: key);
 
   @override
   State<ExplorePage> createState() => _ExplorePageState();
@@ -109,7 +110,7 @@ class _ExplorePageState extends State<ExplorePage> {
                       MaterialPageRoute(
                         builder: (_) => SongPlayerPage(
                           playlist: popularSongs,
-                          initialIndex: i, username: '',
+                          initialIndex: i, username: widget.username,
                         ),
                       ),
                     );
@@ -138,7 +139,7 @@ class _ExplorePageState extends State<ExplorePage> {
                       MaterialPageRoute(
                         builder: (_) => SongPlayerPage(
                           playlist: mostViewedSongs,
-                          initialIndex: i, username: '',
+                          initialIndex: i, username: widget.username,
                         ),
                       ),
                     );
@@ -166,7 +167,7 @@ class _ExplorePageState extends State<ExplorePage> {
                         MaterialPageRoute(
                           builder: (_) => SongPlayerPage(
                             playlist: allSongs,
-                            initialIndex: i, username: '',
+                            initialIndex: i, username: widget.username,
                           ),
                         ),
                       );
@@ -736,7 +736,7 @@ class HomePageState extends State<HomePage> {
           MaterialPageRoute(
             builder:
                 (_) =>
-                PlaylistDetailPage(playlist: playlist, allSongs: allSongs),
+                PlaylistDetailPage(playlist: playlist, allSongs: allSongs, username: widget.username),
           ),
         );
         await _savePlaylists();
@@ -980,7 +980,7 @@ class HomePageState extends State<HomePage> {
                                   (_) => SongPlayerPage(
                                 playlist: playlist,
                                 initialIndex: index,
-                                username: '',
+                                username: widget.username,
                               ),
                             ),
                           );
@@ -1018,7 +1018,7 @@ class HomePageState extends State<HomePage> {
                             (_) => SongPlayerPage(
                           playlist: playlist,
                           initialIndex: index,
-                          username: '',
+                          username: widget.username,
                         ),
                       ),
                     );
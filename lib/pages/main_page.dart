@@ -38,7 +38,7 @@ class _MainPageState extends State<MainPage> {
         socketUrl: 'ws://192.168.219.134:12345',
         username: widget.username,
       ),
-      ExplorePage(socketUrl: 'ws://192.168.219.134:12345'),
+      ExplorePage(socketUrl: 'ws://192.168.219.134:12345', username: widget.username),
       ProfilePage(
         username: widget.username,
         isDarkMode: _isDarkMode,
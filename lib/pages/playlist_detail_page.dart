@@ -8,11 +8,13 @@ import 'song_player_page.dart';
 class PlaylistDetailPage extends StatefulWidget {
   final Playlist playlist;
   final List<Song> allSongs;
+  final String username;
 
   const PlaylistDetailPage({
     Key? key,
     required this.playlist,
     required this.allSongs,
+    required this.username,
   }) : super(key: key);
 
   @override
@@ -147,7 +149,7 @@ class _PlaylistDetailPageState extends State<PlaylistDetailPage> {
                   builder: (_) => SongPlayerPage(
                     playlist: playlist.songs,
                     initialIndex: idx,
-                    username: '',
+                    username: widget.username,
                   ),
                 ),
               );
@@ -55,7 +55,7 @@ class _SongPlayerPageState extends State<SongPlayerPage> {
     await prefs.setStringList('likedSongs_${widget.username}', likedSongIds.toList());
   }
 
-  Future<void> _sendTcpCommand(String action, String payload) async {
+  Future<void> _sendTcpCommand(String action, Object payload) async {
     try {
       Socket socket = await Socket.connect("192.168.219.134", 12344);
       final req = {
@@ -79,7 +79,7 @@ class _SongPlayerPageState extends State<SongPlayerPage> {
       await _player.play();
 
       _viewTimer = Timer(Duration(seconds: 10), () {
-        _sendTcpCommand("increment_view", song.id);
+        _sendTcpCommand("increment_view", {"songId": song.id, "username": widget.username});
         setState(() {
           song.views++;
         });